@@ -0,0 +1,113 @@
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* compiles many sources on a thread pool. the compiler keeps its state in statics (Tab, Code, CodeExt),
+ * so every worker thread loads its own copy of the compiler classes and compiles its sources one after another */
+public class BatchCompiler {
+    private static final Logger log = Logger.getLogger(BatchCompiler.class);
+
+    /* -batch <output dir> <sources or directories>... [-j=threads] [options], true if every source compiled */
+    static boolean run(String[] args) throws Exception {
+        if(args.length < 3) throw new IOException();
+        File outputDir = new File(args[1]);
+        ArrayList<String> options = new ArrayList<>();
+        ArrayList<File> sources = new ArrayList<>();
+        int jobs = Runtime.getRuntime().availableProcessors();
+        for(int i = 2; i < args.length; i++) {
+            if(args[i].startsWith("-j=")) jobs = Integer.parseInt(args[i].substring("-j=".length()));
+            else if(args[i].startsWith("-")) options.add(args[i]);
+            else addSources(new File(args[i]), sources);
+        }
+        String[] compileOptions = options.toArray(new String[0]);
+        String extension = options.contains(Main.JVM_OPTION)? ".jar" : ".obj";
+        if(!outputDir.isDirectory() && !outputDir.mkdirs()) throw new IOException("Cannot create " + outputDir);
+
+        URL[] classPath = classPath();
+        int threads = Math.max(1, Math.min(sources.size(), jobs));
+        ThreadLocal<Method> compilers = ThreadLocal.withInitial(() -> isolatedCompiler(classPath));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        long start = System.nanoTime();
+        ArrayList<Future<Object>> results = new ArrayList<>();
+        for(File source : sources) {
+            File object = new File(outputDir, objectName(source, extension));
+            results.add(pool.submit(() -> compilers.get().invoke(null, source, object, compileOptions)));
+        }
+
+        int failed = 0;
+        for(int i = 0; i < sources.size(); i++) {
+            boolean compiled;
+            try {
+                compiled = (Boolean) results.get(i).get();
+            } catch(ExecutionException e) {
+                Throwable cause = e.getCause() instanceof InvocationTargetException? e.getCause().getCause() : e.getCause();
+                log.error(sources.get(i) + ": " + cause);
+                compiled = false;
+            }
+            if(!compiled) {
+                failed++;
+                log.error("Failed " + sources.get(i));
+            }
+        }
+        pool.shutdown();
+
+        log.info("Compiled " + (sources.size() - failed) + " of " + sources.size() + " sources on " + threads
+                + " threads in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return failed == 0;
+    }
+
+    private static void addSources(File file, ArrayList<File> sources) {
+        if(!file.isDirectory()) {
+            sources.add(file);
+            return;
+        }
+
+        File[] children = file.listFiles();
+        if(children == null) return;
+        Arrays.sort(children);
+        for(File child : children) {
+            if(child.isDirectory() || child.getName().endsWith(".mj")) addSources(child, sources);
+        }
+    }
+
+    private static String objectName(File source, String extension) {
+        String name = source.getName();
+        return (name.endsWith(".mj")? name.substring(0, name.length() - 3) : name) + extension;
+    }
+
+    private static URL[] classPath() throws MalformedURLException {
+        String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for(int i = 0; i < entries.length; i++) urls[i] = new File(entries[i]).toURI().toURL();
+        return urls;
+    }
+
+    /* Main.compile as seen from a class loader of its own, nothing is shared but the JDK */
+    private static Method isolatedCompiler(URL[] classPath) {
+        try {
+            ClassLoader loader = new URLClassLoader(classPath, ClassLoader.getSystemClassLoader().getParent());
+            Class<?> main = loader.loadClass("Main");
+            Method configure = main.getDeclaredMethod("configureWorkerLogging");
+            configure.setAccessible(true);
+            configure.invoke(null);
+            Method compile = main.getDeclaredMethod("compile", File.class, File.class, String[].class);
+            compile.setAccessible(true);
+            return compile;
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load the compiler", e);
+        }
+    }
+}
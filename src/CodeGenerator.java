@@ -1,4 +1,5 @@
 import ast.*;
+import org.apache.log4j.Logger;
 import rs.etf.pp1.symboltable.concepts.Obj;
 import rs.etf.pp1.symboltable.concepts.Struct;
 import util.codegen.CodeExt;
@@ -11,6 +12,7 @@ import java.util.Map;
 import java.util.Stack;
 
 public class CodeGenerator extends VisitorAdaptor {
+    private static final Logger log = Logger.getLogger(CodeGenerator.class);
     enum ConditionType {
         ForLoop,
         IfStmnt
@@ -29,7 +31,78 @@ public class CodeGenerator extends VisitorAdaptor {
     /* unpack statement stuff */
     private final Map<Class, Integer> relOps = new HashMap<>();
     private Obj currentClass = null;
-    private final Stack<Obj> typeVars = new Stack<>();
+    /* receivers of calls still waiting for their arguments, a nested call uses the next hidden local */
+    private int receiverDepth = 0;
+    /* folded by the semantic pass */
+    private final Map<SyntaxNode, Obj> constants;
+    /* destination lengths of unpack statements, from the semantic pass */
+    private final Map<DesignatorStatementUnpack, Integer> unpackLengths;
+    /* unpack copies up to this many elements are unrolled */
+    private static final int UNPACK_UNROLL = 8;
+    /* hidden locals of the method being generated, the frame size in enter is patched at the end */
+    private final Map<String, Obj> hiddenLocals = new HashMap<>();
+    private String frameName;
+    private int frameSizePc;
+    private int frameSize;
+    private boolean error = false;
+
+    public CodeGenerator(Map<SyntaxNode, Obj> constants, Map<DesignatorStatementUnpack, Integer> unpackLengths) {
+        this.constants = constants;
+        this.unpackLengths = unpackLengths;
+    }
+
+    /* true if the node was folded, only the outermost folded node of an expression loads the value */
+    private boolean loadFolded(SyntaxNode node) {
+        Obj value = constants.get(node);
+        if(value == null) return false;
+        if(constants.containsKey(node.getParent())) return true;
+
+        SyntaxNode parent = node.getParent();
+        if(parent instanceof TermMulOp && ((TermMulOp) parent).getFactor() == node) {
+            MulOp m = ((TermMulOp) parent).getMulOp();
+            if(!(m instanceof Mod) && value.getAdr() == 1) {
+                /* x * 1, x / 1 */
+                return true;
+            }
+            if(m instanceof Mul && isPowerOfTwo(value.getAdr())) {
+                CodeExt.loadConst(Integer.numberOfTrailingZeros(value.getAdr()));
+                return true;
+            }
+        }
+
+        CodeExt.load(value);
+        return true;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    /* called right after enter */
+    private void openFrame(String name, int size) {
+        frameName = name;
+        frameSizePc = CodeExt.pc - 1;
+        frameSize = size;
+        hiddenLocals.clear();
+        receiverDepth = 0;
+    }
+
+    private Obj hiddenLocal(String name, Struct type) {
+        return hiddenLocals.computeIfAbsent(name, n -> new Obj(Obj.Var, n, type, frameSize++, 1));
+    }
+
+    /* enter takes the frame size in a signed byte, hidden locals can push a method past it */
+    private void closeFrame() {
+        if(frameSize > Byte.MAX_VALUE) {
+            log.error(frameName + " needs " + frameSize + " locals with its hidden ones, at most " + Byte.MAX_VALUE + " fit");
+            error = true;
+        }
+        CodeExt.buf[frameSizePc] = (byte) frameSize;
+    }
+
+    private boolean isPowerOfTwo(int value) {
+        return value > 1 && (value & (value - 1)) == 0;
+    }
 
 
     /* i have to patch every && here pretty much, so everything in the list */
@@ -53,7 +126,19 @@ public class CodeGenerator extends VisitorAdaptor {
                 node.getParent() instanceof DesignatorStatementCall;
     }
 
+    private boolean hasArguments(Designator d) {
+        SyntaxNode call = d.getParent();
+        MethodCall methodCall = call instanceof FactorCall? ((FactorCall) call).getMethodCall()
+                : ((DesignatorStatementCall) call).getMethodCall();
+        return methodCall instanceof MethodCallPars;
+    }
+
     private void loadDesignator(Designator designator) {
+        if(constants.containsKey(designator.getParent())) {
+            /* constant, loaded by the folded factor */
+            return;
+        }
+
         if(!(designator.getParent() instanceof  FactorCall) &&
                 !(designator.getParent() instanceof  DesignatorList) &&
                 !(designator.getParent() instanceof  DesignatorStatement) &&
@@ -64,23 +149,34 @@ public class CodeGenerator extends VisitorAdaptor {
     }
 
     private void callMethod(Designator d, Obj method) {
+        /* universe methods are expanded in place, the argument is already on the stack */
+        if(method == TabExt.chrObj || method == TabExt.ordObj) {
+            return;
+        }
+        if(method == TabExt.lenObj) {
+            CodeExt.put(CodeExt.arraylength);
+            return;
+        }
+
         if(d instanceof DesignatorSuffixDot || (
                 currentClass != null && method.getLevel() == 1
         )) {
+            StructExt receiverType;
             if(d instanceof DesignatorSuffixDot) {
-                Obj var = typeVars.pop();
-                TabExt.addGlobal(var);
-                CodeExt.load(var);
+                receiverType = (StructExt)((DesignatorSuffixDot) d).getDesignator().obj.getType();
+                if(hasArguments(d)) {
+                    CodeExt.load(hiddenLocal("$receiver" + --receiverDepth + "$", receiverType));
+                } else {
+                    /* this is the only argument, still on top */
+                    CodeExt.put(CodeExt.dup);
+                }
             } else {
                 CodeExt.put(CodeExt.load_n);
+                receiverType = (StructExt)currentClass.getType();
             }
             CodeExt.put(CodeExt.getfield);
             CodeExt.put2(0);
-            CodeExt.put(CodeExt.invokevirtual);
-            for(char c : method.getName().toCharArray()) {
-                CodeExt.put4(c);
-            }
-            CodeExt.put4(-1);
+            CodeExt.putVirtualCall(receiverType.getSlot(method.getName()));
         } else {
             CodeExt.put(CodeExt.call);
             CodeExt.put2(method.getAdr() - CodeExt.pc + 1);
@@ -89,8 +185,6 @@ public class CodeGenerator extends VisitorAdaptor {
 
     @Override
     public void visit(ProgramName programName) {
-        /* init universe scope methods */
-        CodeExt.init();
         /* init some internal structures of the visitor */
         relOps.put(Equal.class, CodeExt.eq);
         relOps.put(NotEqu.class, CodeExt.ne);
@@ -112,9 +206,7 @@ public class CodeGenerator extends VisitorAdaptor {
 
     @Override
     public void visit(ClassDecl classDecl) {
-        StructExt classType = (StructExt)classDecl.getClassName().obj.getType();
-        classType.copyAddresses();
-        CodeExt.addClass(classType);
+        CodeExt.addClass((StructExt)classDecl.getClassName().obj.getType());
         currentClass = null;
     }
 
@@ -126,10 +218,12 @@ public class CodeGenerator extends VisitorAdaptor {
         CodeExt.put(CodeExt.enter);
         CodeExt.put(0);
         CodeExt.put(0);
+        openFrame("Static initializer", 0);
     }
 
     @Override
     public void visit(ClassStaticInitializer classStaticInitializer) {
+        closeFrame();
         CodeExt.put(CodeExt.exit);
         CodeExt.put(CodeExt.return_);
     }
@@ -137,19 +231,21 @@ public class CodeGenerator extends VisitorAdaptor {
     @Override
     public void visit(MethodName methodName) {
         methodName.obj.setAdr(CodeExt.pc);
+        CodeExt.addMethod(methodName.obj);
         /* enter method */
         CodeExt.put(CodeExt.enter);
         CodeExt.put(methodName.obj.getFpPos());
         CodeExt.put(methodName.obj.getLocalSymbols().size());
+        openFrame("Method " + methodName.obj.getName(), methodName.obj.getLocalSymbols().size());
         if(methodName.getName().equals("main") && methodName.obj.getType() == TabExt.noType) {
             CodeExt.mainPc = methodName.obj.getAdr();
-            CodeExt.initClasses();
             CodeExt.initScopes();
         }
     }
 
     @Override
     public void visit(MethodDecl methodDecl) {
+        closeFrame();
         /* exit method */
         if(methodDecl.getMethodName().obj.getType() == TabExt.noType) {
             CodeExt.put(CodeExt.exit);
@@ -340,82 +436,84 @@ public class CodeGenerator extends VisitorAdaptor {
     @Override
     public void visit(DesignatorStatementUnpack designatorStatementUnpack) {
         designatorStatementUnpack.arraylist = designatorStatementUnpack.getDesignatorList().arraylist;
-        Obj tempArrDest = designatorStatementUnpack.getDesignator().obj;
-        Obj tempArrSrc = designatorStatementUnpack.getDesignator1().obj;
-        /* first compare lengths */
-        CodeExt.load(tempArrDest);
-        /* put into global arrDst */
-        CodeExt.store(TabExt.arrDst);
-        CodeExt.load(TabExt.arrDst);
+        ArrayList<?> list = designatorStatementUnpack.arraylist;
+        Designator dst = designatorStatementUnpack.getDesignator();
+        Designator src = designatorStatementUnpack.getDesignator1();
+        Obj srcElem = new Obj(Obj.Elem, "$elem", src.obj.getType().getElemType());
+        Obj dstElem = new Obj(Obj.Elem, "$elem", dst.obj.getType().getElemType());
+        /* prefix of src is on top of the prefix of dst */
+        Obj srcArr = unpackOperand(src, "$unpackSrc$");
+        Obj dstArr = unpackOperand(dst, "$unpackDst$");
+
+        /* first compare lengths, len(dst) + n <= len(src) */
+        CodeExt.load(dstArr);
         CodeExt.put(CodeExt.arraylength);
-        CodeExt.loadConst(designatorStatementUnpack.arraylist.size());
+        CodeExt.loadConst(list.size());
         CodeExt.put(CodeExt.add);
-        /* put into global arrSrc */
-        CodeExt.load(tempArrSrc);
-        CodeExt.store(TabExt.arrSrc);
-        CodeExt.load(TabExt.arrSrc);
+        CodeExt.load(srcArr);
         CodeExt.put(CodeExt.arraylength);
         CodeExt.putFalseJump(CodeExt.gt, CodeExt.pc + 5);
         CodeExt.put(CodeExt.trap);
         CodeExt.put(2);
 
         /* store into designator list designators, i is array index also */
-        int i;
-        for(i = designatorStatementUnpack.arraylist.size() - 1; i >= 0; i--) {
-            if(designatorStatementUnpack.arraylist.get(i) == null) continue;
+        for(int i = list.size() - 1; i >= 0; i--) {
+            if(list.get(i) == null) continue;
 
-            CodeExt.load(TabExt.arrSrc);
+            CodeExt.load(srcArr);
             CodeExt.loadConst(i);
-            CodeExt.load(new Obj(Obj.Elem, "$elem", tempArrSrc.getType().getElemType()));
+            CodeExt.load(srcElem);
+            CodeExt.store(((Designator)list.get(i)).obj);
+        }
 
-            CodeExt.store(((Designator)designatorStatementUnpack.arraylist.get(i)).obj);
+        /* dst[j] = src[j + n], unrolled when the length of dst is known */
+        Integer length = unpackLengths.get(designatorStatementUnpack);
+        if(length != null && length <= UNPACK_UNROLL) {
+            for(int j = 0; j < length; j++) {
+                CodeExt.load(dstArr);
+                CodeExt.loadConst(j);
+                CodeExt.load(srcArr);
+                CodeExt.loadConst(j + list.size());
+                CodeExt.load(srcElem);
+                CodeExt.store(dstElem);
+            }
+            return;
         }
-        int beyondFix;
-        int conditionPc;
-        int statementFix;
-        int updationJump;
-        i = designatorStatementUnpack.arraylist.size();
-
-        /* loop until arraylength of designator 1*/
-        /* initial part */
-        CodeExt.loadConst(0);
-        CodeExt.loadConst(i);
+
+        Obj index = hiddenLocal("$unpackIdx$", TabExt.intType);
         CodeExt.loadConst(0);
-        /* condition */
-        conditionPc = CodeExt.pc;
-        CodeExt.load(TabExt.arrDst);
+        CodeExt.store(index);
+        int conditionPc = CodeExt.pc;
+        CodeExt.load(index);
+        CodeExt.load(dstArr);
         CodeExt.put(CodeExt.arraylength);
-        CodeExt.putFalseJump(CodeExt.lt, 0); /* fixup later i guess*/
-        beyondFix = CodeExt.pc - 2;
-        CodeExt.putJump(0);
-        statementFix = CodeExt.pc - 2;
-        /* updation?? */
-        updationJump = CodeExt.pc;
-        CodeExt.loadConst(1);
-        CodeExt.put(CodeExt.add);
-        CodeExt.put(CodeExt.dup_x1);
-        CodeExt.put(CodeExt.pop);
-        CodeExt.loadConst(1);
-        CodeExt.put(CodeExt.add);
-        CodeExt.put(CodeExt.dup_x1);
+        CodeExt.putFalseJump(CodeExt.lt, 0);
+        int beyondFix = CodeExt.pc - 2;
+        CodeExt.load(dstArr);
+        CodeExt.load(index);
+        CodeExt.load(srcArr);
+        CodeExt.load(index);
+        if(list.size() > 0) {
+            CodeExt.loadConst(list.size());
+            CodeExt.put(CodeExt.add);
+        }
+        CodeExt.load(srcElem);
+        CodeExt.store(dstElem);
+        CodeExt.put(CodeExt.inc);
+        CodeExt.put(index.getAdr());
+        CodeExt.put(1);
         CodeExt.putJump(conditionPc);
-        CodeExt.fixup(statementFix);
-        /* statement */
-        CodeExt.put(CodeExt.dup2);
-        CodeExt.load(TabExt.arrSrc);
-        CodeExt.put(CodeExt.dup_x1);
-        CodeExt.put(CodeExt.pop);
-        CodeExt.load(new Obj(Obj.Elem, "$elem", tempArrSrc.getType().getElemType()));
-        /* insane hacks */
-        CodeExt.load(TabExt.arrDst);
-        CodeExt.put(CodeExt.dup_x2);
-        CodeExt.put(CodeExt.pop);
-        CodeExt.store(new Obj(Obj.Elem, "$elem", tempArrDest.getType().getElemType()));;
-        CodeExt.putJump(updationJump);
         CodeExt.fixup(beyondFix);
-        /* after loop */
-        CodeExt.put(CodeExt.pop);
-        CodeExt.put(CodeExt.pop);
+    }
+
+    /* a variable is loaded where it is needed, anything with a prefix is evaluated once into a hidden local */
+    private Obj unpackOperand(Designator d, String name) {
+        if(d.obj.getKind() == Obj.Var) return d.obj;
+
+        Obj temp = hiddenLocal(name, d.obj.getType());
+        CodeExt.load(d.obj);
+        CodeExt.store(temp);
+        return temp;
     }
 
     @Override
@@ -437,7 +535,7 @@ public class CodeGenerator extends VisitorAdaptor {
 
     @Override
     public void visit(DesignatorBaseNamespace designatorBaseNamespace) {
-        if(currentClass != null && currentClass.getType().getMembers().contains(designatorBaseNamespace.obj)) {
+        if(currentClass != null && ((StructExt)currentClass.getType()).isMember(designatorBaseNamespace.obj)) {
             CodeExt.put(CodeExt.load_n);
         }
 
@@ -447,7 +545,7 @@ public class CodeGenerator extends VisitorAdaptor {
     @Override
     /* only load if not doing store later */
     public void visit(DesignatorBaseIdent designatorBaseIdent) {
-        if(currentClass != null && currentClass.getType().getMembers().contains(designatorBaseIdent.obj)) {
+        if(currentClass != null && ((StructExt)currentClass.getType()).isMember(designatorBaseIdent.obj)) {
             CodeExt.put(CodeExt.load_n);
         }
 
@@ -461,11 +559,10 @@ public class CodeGenerator extends VisitorAdaptor {
 
     @Override
     public void visit(DesignatorSuffixDot designatorSuffixDot) {
-        /* should eventually be changed */
-        if(parentIsCall(designatorSuffixDot)) {
-            typeVars.push(TabExt.getNextGlobal());
-            CodeExt.store(typeVars.peek());
-            CodeExt.load(typeVars.peek());
+        if(parentIsCall(designatorSuffixDot) && hasArguments(designatorSuffixDot)) {
+            /* this stays on the stack as the first argument, the copy is for the table lookup */
+            CodeExt.put(CodeExt.dup);
+            CodeExt.store(hiddenLocal("$receiver" + receiverDepth++ + "$", designatorSuffixDot.getDesignator().obj.getType()));
         }
 
         loadDesignator(designatorSuffixDot);
@@ -481,11 +578,8 @@ public class CodeGenerator extends VisitorAdaptor {
         OrCondition(conditionList);
     }
 
-    @Override
-    public void visit(CondFactRelExpr condFactRelExpr) {
-       /* put false jump to somewhere, no idea where, then patch it after the statement is done */
-        int op = relOps.get(condFactRelExpr.getRelOp().getClass());
-        CodeExt.putFalseJump(op, 0);
+    /* the last jump emitted goes wherever the condition leads when false */
+    private void addFalsePatch() {
         switch(conditionType) {
             case ForLoop:
                 beyondJumps.peek().add(CodeExt.pc - 2);
@@ -497,33 +591,70 @@ public class CodeGenerator extends VisitorAdaptor {
         }
     }
 
+    /* constant conditions, true falls through, false always jumps */
+    private boolean foldedCondition(CondFact condFact) {
+        Obj value = constants.get(condFact);
+        if(value == null) return false;
+
+        if(value.getAdr() == 0) {
+            CodeExt.putJump(0);
+            addFalsePatch();
+        }
+        return true;
+    }
+
+    @Override
+    public void visit(CondFactRelExpr condFactRelExpr) {
+       /* put false jump to somewhere, no idea where, then patch it after the statement is done */
+        if(foldedCondition(condFactRelExpr)) return;
+        int op = relOps.get(condFactRelExpr.getRelOp().getClass());
+        CodeExt.putFalseJump(op, 0);
+        addFalsePatch();
+    }
+
     @Override
     public void visit(CondFactExprSingle condFactExprSingle) {
+        if(foldedCondition(condFactExprSingle)) return;
         CodeExt.loadConst(0);
         CodeExt.putFalseJump(CodeExt.ne, 0);
-        switch(conditionType) {
-            case ForLoop:
-                beyondJumps.peek().add(CodeExt.pc - 2);
-                break;
-            case IfStmnt:
-                elsePatches.peek().add(CodeExt.pc - 2);
-                break;
-        }
+        addFalsePatch();
     }
 
     @Override
     public void visit(ExprMinusTerm exprMinusTerm) {
+        if(loadFolded(exprMinusTerm)) return;
         CodeExt.put(CodeExt.neg);
     }
 
+    @Override
+    public void visit(ExprTerm exprTerm) {
+        loadFolded(exprTerm);
+    }
+
+    @Override
+    public void visit(TermFactor termFactor) {
+        loadFolded(termFactor);
+    }
+
+    @Override
+    public void visit(FactorExpr factorExpr) {
+        loadFolded(factorExpr);
+    }
+
+    @Override
+    public void visit(FactorDesignator factorDesignator) {
+        loadFolded(factorDesignator);
+    }
+
     @Override
     public void visit(FactorConstVals factorConstVals) {
-        CodeExt.load(factorConstVals.getConstVals().obj);
+        loadFolded(factorConstVals);
     }
 
     @Override
     public void visit(FactorNewArray factorNewArray) {
         int val = factorNewArray.getType().struct.getKind() == StructExt.Char? 0 : 1;
+        CodeExt.addAllocation(factorNewArray.struct);
         CodeExt.put(CodeExt.newarray);
         CodeExt.put(val);
     }
@@ -537,9 +668,11 @@ public class CodeGenerator extends VisitorAdaptor {
 
     @Override
     public void visit(FactorNewTypeNoPars factorNewTypeNoPars) {
+        CodeExt.addAllocation(factorNewTypeNoPars.struct);
         CodeExt.put(CodeExt.new_);
         CodeExt.put2(factorNewTypeNoPars.struct.getNumberOfFields() * 4);
         CodeExt.put(CodeExt.dup);
+        CodeExt.addTablePointer((StructExt)factorNewTypeNoPars.struct);
         CodeExt.loadConst(((StructExt)factorNewTypeNoPars.struct).getTvfp());
         CodeExt.put(CodeExt.putfield);
         CodeExt.put2(0);
@@ -547,14 +680,24 @@ public class CodeGenerator extends VisitorAdaptor {
 
     @Override
     public void visit(ExprAddop exprAddop) {
+        if(loadFolded(exprAddop)) return;
         int operation = exprAddop.getAddOp() instanceof Plus? CodeExt.add : CodeExt.sub;
         CodeExt.put(operation);
     }
 
     @Override
     public void visit(TermMulOp termMulOp) {
+        if(loadFolded(termMulOp)) return;
         MulOp m = termMulOp.getMulOp();
-        if(m instanceof Mul) {
+        Obj factor = constants.get(termMulOp.getFactor());
+        if(factor != null && !(m instanceof Mod) && factor.getAdr() == 1) {
+            return;
+        }
+
+        if(m instanceof Mul && factor != null && isPowerOfTwo(factor.getAdr())) {
+            /* const k was loaded instead of the factor */
+            CodeExt.put(CodeExt.shl);
+        } else if(m instanceof Mul) {
             CodeExt.put(CodeExt.mul);
         } else if(m instanceof  Div) {
             CodeExt.put(CodeExt.div);
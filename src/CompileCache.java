@@ -0,0 +1,196 @@
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* object files by content: the key hashes the compiler classes, the options and the source text.
+ * entries are files in one directory, the least recently used go first once it grows past its limit.
+ * several compiler processes may share the directory, the bookkeeping happens under a file lock */
+public class CompileCache {
+    static final long DEFAULT_LIMIT_MIB = 64;
+
+    private static final Logger log = Logger.getLogger(CompileCache.class);
+    private static final String LOCK = "lock";
+    private static final String STATS = "stats";
+    private static String compilerVersion = null;
+
+    private final File dir;
+    private final long limit;
+
+    CompileCache(File dir, long limit) {
+        this.dir = dir;
+        this.limit = limit;
+    }
+
+    static boolean isOption(String option) {
+        return option.startsWith("-cache=") || option.startsWith("-cachesize=");
+    }
+
+    /* -cache=<dir> and -cachesize=<MiB>, null without -cache */
+    static CompileCache fromOptions(String[] args, int from) {
+        File dir = null;
+        long limit = DEFAULT_LIMIT_MIB;
+        for(int i = from; i < args.length; i++) {
+            if(args[i].startsWith("-cache=")) dir = new File(args[i].substring("-cache=".length()));
+            else if(args[i].startsWith("-cachesize=")) limit = Long.parseLong(args[i].substring("-cachesize=".length()));
+        }
+        return dir == null? null : new CompileCache(dir, limit << 20);
+    }
+
+    /* the cached object on a hit, Main.compile and a new entry on a miss */
+    boolean compile(File sourceCode, File objectFile, int inlineBudget, boolean gcMaps) throws Exception {
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File entry = new File(dir, key(sourceCode, inlineBudget, gcMaps) + ".obj");
+
+        boolean hit = locked(() -> {
+            if(!entry.isFile()) return false;
+            /* the modification time orders the entries for eviction */
+            entry.setLastModified(System.currentTimeMillis());
+            Files.copy(entry.toPath(), objectFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            record(1, 0, entry.length());
+            return true;
+        });
+        if(hit) {
+            log.info("Cache hit for " + sourceCode + ", " + entry.getName());
+            return true;
+        }
+
+        boolean compiled = Main.compile(sourceCode, objectFile, inlineBudget, gcMaps);
+        /* readers only ever see whole entries, the copy is moved in under its final name */
+        File partial = compiled? File.createTempFile("entry", ".tmp", dir) : null;
+        if(compiled) Files.copy(objectFile.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        locked(() -> {
+            if(compiled) Files.move(partial.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            record(0, 1, 0);
+            evict();
+            return null;
+        });
+        return compiled;
+    }
+
+    /* hits, misses, bytes of object code served without compiling and the current size */
+    static String report(File dir) throws Exception {
+        CompileCache cache = new CompileCache(dir, 0);
+        return cache.locked(() -> {
+            Properties stats = cache.readStats();
+            long hits = Long.parseLong(stats.getProperty("hits", "0"));
+            long misses = Long.parseLong(stats.getProperty("misses", "0"));
+            List<File> entries = cache.entries();
+            long size = 0;
+            for(File entry : entries) size += entry.length();
+            return "Cache " + dir + ": " + hits + " hits, " + misses + " misses, "
+                    + stats.getProperty("bytesSaved", "0") + " bytes saved, "
+                    + entries.size() + " entries in " + size + " bytes";
+        });
+    }
+
+    private String key(File sourceCode, int inlineBudget, boolean gcMaps) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(compilerVersion().getBytes());
+        digest.update(("inline=" + inlineBudget + "\n").getBytes());
+        digest.update(("gc=" + gcMaps + "\n").getBytes());
+        digest.update(Files.readAllBytes(sourceCode.toPath()));
+        return hex(digest.digest());
+    }
+
+    /* hash of the compiler classes, a rebuilt compiler never sees the entries of the old one */
+    private static synchronized String compilerVersion() throws Exception {
+        if(compilerVersion != null) return compilerVersion;
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        Path location = Paths.get(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        if(Files.isDirectory(location)) {
+            List<Path> classes;
+            try(Stream<Path> files = Files.walk(location)) {
+                classes = files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+            }
+            for(Path c : classes) {
+                digest.update(location.relativize(c).toString().getBytes());
+                digest.update(Files.readAllBytes(c));
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        compilerVersion = hex(digest.digest());
+        return compilerVersion;
+    }
+
+    /* lower case, two digits a byte */
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    /* FileLock is held by the whole process and throws if one of its own threads already has it,
+     * so threads (batch workers in their own class loaders too) first queue on the interned path.
+     * the lock is only there to be held for the body and released after it */
+    @SuppressWarnings("try")
+    private <T> T locked(Callable<T> action) throws Exception {
+        synchronized(dir.getCanonicalPath().intern()) {
+            try(FileChannel channel = FileChannel.open(new File(dir, LOCK).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+                return action.call();
+            }
+        }
+    }
+
+    private Properties readStats() throws IOException {
+        Properties stats = new Properties();
+        File file = new File(dir, STATS);
+        if(file.isFile()) {
+            try(InputStream in = new FileInputStream(file)) {
+                stats.load(in);
+            }
+        }
+        return stats;
+    }
+
+    /* only with the lock held */
+    private void record(long hits, long misses, long bytesSaved) throws IOException {
+        Properties stats = readStats();
+        stats.setProperty("hits", String.valueOf(Long.parseLong(stats.getProperty("hits", "0")) + hits));
+        stats.setProperty("misses", String.valueOf(Long.parseLong(stats.getProperty("misses", "0")) + misses));
+        stats.setProperty("bytesSaved", String.valueOf(Long.parseLong(stats.getProperty("bytesSaved", "0")) + bytesSaved));
+        try(OutputStream out = new FileOutputStream(new File(dir, STATS))) {
+            stats.store(out, null);
+        }
+    }
+
+    private List<File> entries() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".obj"));
+        return files == null? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    /* only with the lock held, most recently used first until the limit */
+    private void evict() {
+        List<File> entries = entries();
+        entries.sort(Comparator.comparingLong(File::lastModified).reversed());
+        long size = 0;
+        for(File entry : entries) {
+            size += entry.length();
+            if(size > limit && entry.delete()) log.info("Cache evicted " + entry.getName());
+        }
+    }
+}
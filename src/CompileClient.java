@@ -0,0 +1,62 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* hands a compilation to a running CompileServer, compiles in this process when there is none.
+ * [-port=N] <source> <object file> [options] or [-port=N] -shutdown */
+public class CompileClient {
+
+    public static void main(String[] args) throws Exception {
+        int port = CompileServer.DEFAULT_PORT;
+        if(args.length > 0 && args[0].startsWith("-port=")) {
+            try {
+                port = Integer.parseInt(args[0].substring("-port=".length()));
+            } catch(NumberFormatException e) {
+                syntax();
+            }
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if(args.length < 1 || (args.length < 2 && !args[0].equals("-shutdown"))) syntax();
+
+        String request;
+        if(args[0].equals("-shutdown")) {
+            request = CompileServer.SHUTDOWN;
+        } else {
+            /* the server may run in another directory */
+            StringBuilder sb = new StringBuilder(new File(args[0]).getAbsolutePath());
+            sb.append('\t').append(new File(args[1]).getAbsolutePath());
+            for(int i = 2; i < args.length; i++) sb.append('\t').append(args[i]);
+            request = sb.toString();
+        }
+
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(request);
+            out.flush();
+
+            String line, last = null;
+            while((line = in.readLine()) != null) {
+                if(last != null) System.err.println(last);
+                last = line;
+            }
+            System.exit(CompileServer.OK.equals(last)? 0 : 1);
+        } catch(ConnectException e) {
+            if(request.equals(CompileServer.SHUTDOWN)) return;
+            Main.main(args);
+        }
+    }
+
+    private static void syntax() {
+        System.out.println("Syntax: java CompileClient [-port=N] source object [-noinline | -inline=N] [-gc] [-jvm] [-cache=dir] [-cachesize=MiB]");
+        System.out.println("        java CompileClient [-port=N] -shutdown");
+        System.exit(2);
+    }
+}
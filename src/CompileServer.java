@@ -0,0 +1,87 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* keeps the compiler loaded and warm between compilations, jobs come one at a time over a local socket.
+ * request: source, object file and options separated by tabs on one line, or shutdown.
+ * reply: the error log of the compilation, then ok or failed on a line of its own */
+public class CompileServer {
+    static final int DEFAULT_PORT = 4747;
+    static final String OK = "ok";
+    static final String FAILED = "failed";
+    static final String SHUTDOWN = "shutdown";
+
+    private static final Logger log = Logger.getLogger(CompileServer.class);
+
+    /* -server [port] */
+    static void run(String[] args) throws Exception {
+        int port = args.length > 1? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        /* the ast and symbol table dumps are what makes a small compile slow, clients only get errors */
+        Main.configureWorkerLogging();
+        log.setLevel(Level.INFO);
+
+        try(ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            log.info("Compile server listening on port " + port);
+            while(true) {
+                try(Socket client = server.accept()) {
+                    if(!serve(client)) break;
+                } catch(IOException e) {
+                    log.error("Client dropped: " + e.getMessage());
+                } catch(Throwable e) {
+                    /* one bad request does not take the server down for everyone else */
+                    log.error("Request failed: " + e);
+                }
+            }
+        }
+        log.info("Compile server stopped");
+    }
+
+    /* false on shutdown */
+    private static boolean serve(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+        String request = in.readLine();
+        if(request == null) return true;
+        if(request.equals(SHUTDOWN)) {
+            out.println(OK);
+            out.flush();
+            return false;
+        }
+
+        String[] parts = request.split("\t");
+        WriterAppender diagnostics = new WriterAppender(new PatternLayout("%-5p - %m%n"), out);
+        diagnostics.setThreshold(Level.ERROR);
+        Logger.getRootLogger().addAppender(diagnostics);
+        long start = System.nanoTime();
+        boolean compiled = false;
+        try {
+            if(parts.length < 2) throw new IOException("Expected a source and an object file");
+            compiled = Main.compile(new File(parts[0]), new File(parts[1]), Arrays.copyOfRange(parts, 2, parts.length));
+        } catch(Throwable e) {
+            /* a StackOverflowError from a deep source is just a failed job, the server keeps going */
+            log.error("Compilation failed: " + e);
+        } finally {
+            Logger.getRootLogger().removeAppender(diagnostics);
+        }
+
+        log.info((compiled? "Compiled " : "Failed ") + parts[0] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        MDC.remove("source");
+        out.println(compiled? OK : FAILED);
+        out.flush();
+        return true;
+    }
+}
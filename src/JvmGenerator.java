@@ -0,0 +1,860 @@
+import ast.*;
+import org.apache.log4j.Logger;
+import rs.etf.pp1.symboltable.concepts.Obj;
+import rs.etf.pp1.symboltable.concepts.Struct;
+import util.jvm.Bytecode;
+import util.jvm.ClassWriter;
+import util.semantics.StructExt;
+import util.semantics.TabExt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+import static util.jvm.Bytecode.*;
+
+/* the decorated tree straight to JVM classes, visited the way CodeGenerator visits it. the program is a class
+ * with the globals as static fields, the global methods as static methods and a main(String[]) that calls main.
+ * every MJ class is a JVM class with its fields, its statics and virtual methods, so HotSpot does the dispatch.
+ * int, char and bool are ints, char arrays are byte arrays and sign extend like baload does on the MJVM.
+ * runtime errors are the JVM's own exceptions, the heap is the JVM heap */
+public class JvmGenerator extends VisitorAdaptor {
+    private static final Logger log = Logger.getLogger(JvmGenerator.class);
+    private static final String OBJECT = "java/lang/Object";
+    private static final String TRAP = "java/lang/IllegalStateException";
+    private static final String OUT = "java/io/PrintStream";
+    private static final String IN = "java/io/InputStream";
+
+    private CodeGenerator.ConditionType conditionType = CodeGenerator.ConditionType.IfStmnt;
+    /* if statements */
+    private final Stack<Integer> elseLabels = new Stack<>();
+    private final Stack<Integer> statementLabels = new Stack<>();
+    private final Stack<Integer> beyondLabels = new Stack<>();
+    /* for loops */
+    private final Stack<Integer> conditionLabels = new Stack<>();
+    private final Stack<Integer> bodyLabels = new Stack<>();
+    private final Stack<Integer> updationLabels = new Stack<>();
+    private final Stack<Integer> loopEndLabels = new Stack<>();
+    /* relational operator -> jump taken when it does not hold */
+    private final Map<Class<?>, Integer> falseJumps = new HashMap<>();
+    /* folded by the semantic pass */
+    private final Map<SyntaxNode, Obj> constants;
+
+    private Obj programObj;
+    private String programClass;
+    /* every class by its internal name, the program first */
+    private final Map<String, ClassWriter> classes = new LinkedHashMap<>();
+    /* owner and name of the static initializers, main calls them in this order */
+    private final ArrayList<String[]> initializers = new ArrayList<>();
+    private Obj currentClass = null;
+    private Obj currentMethod = null;
+    private boolean error = false;
+
+    /* the method being generated, hidden locals come after the MJ locals */
+    private Bytecode c;
+    private final Map<String, Obj> hiddenLocals = new HashMap<>();
+    private int frameSize;
+
+    public JvmGenerator(Map<SyntaxNode, Obj> constants) {
+        this.constants = constants;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public String getMainClass() {
+        return programClass;
+    }
+
+    /* internal name -> class file */
+    public Map<String, byte[]> getClassFiles() {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for(Map.Entry<String, ClassWriter> entry : classes.entrySet()) {
+            files.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return files;
+    }
+
+    /* namespace::name is not a legal JVM name */
+    private static String jvmName(String name) {
+        return name.replace("::", "$");
+    }
+
+    private static String className(Struct type) {
+        return jvmName(((StructExt) type).getClassName());
+    }
+
+    private static String descriptor(Struct type) {
+        switch(type.getKind()) {
+            case Struct.Array:
+                return "[" + (type.getElemType().getKind() == Struct.Char? "B" : descriptor(type.getElemType()));
+            case Struct.Class:
+                return "L" + className(type) + ";";
+            default:
+                return "I";
+        }
+    }
+
+    /* this is not a parameter, the receiver of invokevirtual takes its place */
+    private static String methodDescriptor(Obj method) {
+        Struct[] parameters = new Struct[method.getFpPos()];
+        for(Obj local : method.getLocalSymbols()) {
+            if(local.getAdr() < parameters.length) parameters[local.getAdr()] = local.getType();
+        }
+
+        StringBuilder d = new StringBuilder("(");
+        for(int i = method.getLevel() == 1? 1 : 0; i < parameters.length; i++) d.append(descriptor(parameters[i]));
+        d.append(')');
+        return d.append(method.getType() == TabExt.noType? "V" : descriptor(method.getType())).toString();
+    }
+
+    /* statics of a class are named "Class.name" and live in the class, other globals in the program class */
+    private String staticOwner(Obj var) {
+        int dot = var.getName().lastIndexOf('.');
+        return dot < 0? programClass : jvmName(var.getName().substring(0, dot));
+    }
+
+    private static String staticName(Obj var) {
+        return jvmName(var.getName().substring(var.getName().lastIndexOf('.') + 1));
+    }
+
+    private void newClass(Obj type, String superName) {
+        String name = className(type.getType());
+        ClassWriter cw = new ClassWriter(ClassWriter.ACC_PUBLIC, name, superName);
+        Bytecode init = new Bytecode(cw, 1);
+        init.aload(0);
+        init.invokespecial(superName, "<init>", "()V");
+        init.op(RETURN);
+        cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+        classes.put(name, cw);
+    }
+
+    private void openMethod(String owner, int arguments, int frame) {
+        c = new Bytecode(classes.get(owner), arguments);
+        frameSize = frame;
+        hiddenLocals.clear();
+    }
+
+    private void closeMethod(String owner, int access, String name, String descriptor) {
+        if(c.toByteArray() == null) {
+            log.error("Method " + name + " has a branch too long for the JVM");
+            error = true;
+            return;
+        }
+        classes.get(owner).addMethod(access, name, descriptor, c);
+    }
+
+    private Obj hiddenLocal(String name, Struct type) {
+        return hiddenLocals.computeIfAbsent(name, n -> new Obj(Obj.Var, n, type, frameSize++, 1));
+    }
+
+    private void trap(int code) {
+        c.anew(TRAP);
+        c.op(DUP);
+        c.ldc("trap " + code);
+        c.invokespecial(TRAP, "<init>", "(Ljava/lang/String;)V");
+        c.op(ATHROW);
+    }
+
+    private void loadConstant(Obj value) {
+        if(value.getType() == TabExt.nullType) c.op(ACONST_NULL);
+        else c.iconst(value.getAdr());
+    }
+
+    /* true if the node was folded, only the outermost folded node of an expression loads the value */
+    private boolean loadFolded(SyntaxNode node) {
+        Obj value = constants.get(node);
+        if(value == null) return false;
+        if(!constants.containsKey(node.getParent())) loadConstant(value);
+        return true;
+    }
+
+    private void loadVariable(Obj var) {
+        if(var.getLevel() == 0) c.getstatic(staticOwner(var), staticName(var), descriptor(var.getType()));
+        else if(var.getType().isRefType()) c.aload(var.getAdr());
+        else c.iload(var.getAdr());
+    }
+
+    private void storeVariable(Obj var) {
+        if(var.getLevel() == 0) c.putstatic(staticOwner(var), staticName(var), descriptor(var.getType()));
+        else if(var.getType().isRefType()) c.astore(var.getAdr());
+        else c.istore(var.getAdr());
+    }
+
+    private void loadElement(Struct elemType) {
+        c.op(elemType.getKind() == Struct.Char? BALOAD : elemType.isRefType()? AALOAD : IALOAD);
+    }
+
+    private void storeElement(Struct elemType) {
+        c.op(elemType.getKind() == Struct.Char? BASTORE : elemType.isRefType()? AASTORE : IASTORE);
+    }
+
+    /* a field is found from the static type of its prefix, this when there is none */
+    private String fieldOwner(Designator d) {
+        Struct owner = d instanceof DesignatorSuffixDot? ((DesignatorSuffixDot) d).getDesignator().obj.getType()
+                : currentClass.getType();
+        return className(owner);
+    }
+
+    private void load(Designator d) {
+        Obj o = d.obj;
+        switch(o.getKind()) {
+            case Obj.Con:
+                loadConstant(o);
+                break;
+            case Obj.Var:
+                loadVariable(o);
+                break;
+            case Obj.Fld:
+                c.getfield(fieldOwner(d), o.getName(), descriptor(o.getType()));
+                break;
+            case Obj.Elem:
+                loadElement(o.getType());
+                break;
+            default:
+                log.error("Cannot load " + o.getName());
+                error = true;
+        }
+    }
+
+    private void store(Designator d) {
+        Obj o = d.obj;
+        switch(o.getKind()) {
+            case Obj.Var:
+                storeVariable(o);
+                break;
+            case Obj.Fld:
+                c.putfield(fieldOwner(d), o.getName(), descriptor(o.getType()));
+                break;
+            case Obj.Elem:
+                storeElement(o.getType());
+                break;
+            default:
+                log.error("Cannot store to " + o.getName());
+                error = true;
+        }
+    }
+
+    private void OrCondition(SyntaxNode node) {
+        /* condition || CondTerm, the terms so far were false when we get here */
+        if(node.getParent() instanceof ConditionList) {
+            c.jump(GOTO, statementLabels.peek());
+            c.mark(elseLabels.pop());
+            elseLabels.push(c.newLabel());
+        }
+    }
+
+    private void loadDesignator(Designator designator) {
+        if(constants.containsKey(designator.getParent())) {
+            /* constant, loaded by the folded factor */
+            return;
+        }
+
+        if(!(designator.getParent() instanceof  FactorCall) &&
+                !(designator.getParent() instanceof  DesignatorList) &&
+                !(designator.getParent() instanceof  DesignatorStatement) &&
+                !(designator.getParent() instanceof  StatementRead) &&
+                designator.obj.getKind() != Obj.Type) {
+            load(designator);
+        }
+    }
+
+    /* the receiver and then the arguments are already on the stack */
+    private void callMethod(Designator d, Obj method) {
+        /* universe methods are expanded in place, the argument is already on the stack */
+        if(method == TabExt.chrObj || method == TabExt.ordObj) {
+            return;
+        }
+        if(method == TabExt.lenObj) {
+            c.op(ARRAYLENGTH);
+            return;
+        }
+
+        String descriptor = methodDescriptor(method);
+        if(d instanceof DesignatorSuffixDot) {
+            Struct receiverType = ((DesignatorSuffixDot) d).getDesignator().obj.getType();
+            c.invokevirtual(className(receiverType), method.getName(), descriptor);
+        } else if(currentClass != null && method.getLevel() == 1) {
+            c.invokevirtual(className(currentClass.getType()), method.getName(), descriptor);
+        } else {
+            c.invokestatic(programClass, jvmName(method.getName()), descriptor);
+        }
+    }
+
+    @Override
+    public void visit(ProgramName programName) {
+        falseJumps.put(Equal.class, IF_ICMPNE);
+        falseJumps.put(NotEqu.class, IF_ICMPEQ);
+        falseJumps.put(Greater.class, IF_ICMPLE);
+        falseJumps.put(GrEqu.class, IF_ICMPLT);
+        falseJumps.put(Lower.class, IF_ICMPGE);
+        falseJumps.put(LowEqu.class, IF_ICMPGT);
+
+        programObj = programName.obj;
+        programClass = jvmName(programName.getName());
+        classes.put(programClass, new ClassWriter(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, programClass, OBJECT));
+    }
+
+    @Override
+    public void visit(Program program) {
+        for(Obj global : programObj.getLocalSymbols()) {
+            if(global.getKind() != Obj.Var) continue;
+            classes.get(staticOwner(global)).addField(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC,
+                    staticName(global), descriptor(global.getType()));
+        }
+
+        ClassWriter cw = classes.get(programClass);
+        Bytecode main = new Bytecode(cw, 1);
+        main.invokestatic(programClass, "main", "()V");
+        main.op(RETURN);
+        cw.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "main", "([Ljava/lang/String;)V", main);
+        addRuntime(cw);
+    }
+
+    @Override
+    public void visit(ClassNameIdent classNameIdent) {
+        currentClass = classNameIdent.obj;
+        newClass(currentClass, OBJECT);
+    }
+
+    @Override
+    public void visit(ClassNameExtends classNameExtends) {
+        currentClass = classNameExtends.obj;
+        newClass(currentClass, className(currentClass.getType().getElemType()));
+    }
+
+    @Override
+    public void visit(ClassDecl classDecl) {
+        /* inherited fields are the parent's objects, they are declared there */
+        StructExt type = (StructExt) currentClass.getType();
+        Struct parent = type.getElemType();
+        ClassWriter cw = classes.get(className(type));
+        for(Obj member : type.getMembers()) {
+            if(member.getKind() != Obj.Fld || member.getName().equals("$tvfp$")) continue;
+            if(parent instanceof StructExt && ((StructExt) parent).isMember(member)) continue;
+            cw.addField(ClassWriter.ACC_PUBLIC, member.getName(), descriptor(member.getType()));
+        }
+        currentClass = null;
+    }
+
+    @Override
+    public void visit(StaticScopeInit staticScopeInit) {
+        String owner = className(currentClass.getType());
+        initializers.add(new String[] { owner, "$init" + initializers.size() });
+        openMethod(owner, 0, 0);
+    }
+
+    @Override
+    public void visit(ClassStaticInitializer classStaticInitializer) {
+        c.op(RETURN);
+        String[] initializer = initializers.get(initializers.size() - 1);
+        closeMethod(initializer[0], ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, initializer[1], "()V");
+    }
+
+    @Override
+    public void visit(MethodName methodName) {
+        currentMethod = methodName.obj;
+        String owner = currentClass == null? programClass : className(currentClass.getType());
+        openMethod(owner, currentMethod.getFpPos(), currentMethod.getLocalSymbols().size());
+        /* locals start out zero like after enter, and the verifier wants them written before they are read */
+        for(Obj local : currentMethod.getLocalSymbols()) {
+            if(local.getAdr() < currentMethod.getFpPos()) continue;
+            if(local.getType().isRefType()) c.op(ACONST_NULL);
+            else c.iconst(0);
+            storeVariable(local);
+        }
+        if(methodName.getName().equals("main") && currentMethod.getType() == TabExt.noType) {
+            for(String[] initializer : initializers) c.invokestatic(initializer[0], initializer[1], "()V");
+        }
+    }
+
+    @Override
+    public void visit(MethodDecl methodDecl) {
+        if(currentMethod.getType() == TabExt.noType) c.op(RETURN);
+        else trap(1);
+
+        int access = ClassWriter.ACC_PUBLIC | (currentClass == null? ClassWriter.ACC_STATIC : 0);
+        String owner = currentClass == null? programClass : className(currentClass.getType());
+        closeMethod(owner, access, jvmName(currentMethod.getName()), methodDescriptor(currentMethod));
+        currentMethod = null;
+    }
+
+    @Override
+    public void visit(StatementReturn statementReturn) {
+        c.op(RETURN);
+    }
+
+    @Override
+    public void visit(StatementReturnExpr statementReturnExpr) {
+        c.op(currentMethod.getType().isRefType()? ARETURN : IRETURN);
+    }
+
+    @Override
+    public void visit(StatementPrintNumber statementPrintNumber) {
+        c.iconst(statementPrintNumber.getNumber());
+        boolean isChar = statementPrintNumber.getExpr().struct.getKind() == StructExt.Char;
+        c.invokestatic(programClass, isChar? "$bprint" : "$print", "(II)V");
+    }
+
+    @Override
+    public void visit(StatementPrint statementPrint) {
+        int kind = statementPrint.getExpr().struct.getKind();
+        c.iconst(kind == StructExt.Char || kind == StructExt.Bool? 1 : 5);
+        c.invokestatic(programClass, kind == StructExt.Char? "$bprint" : "$print", "(II)V");
+    }
+
+    @Override
+    public void visit(StatementRead statementRead) {
+        int kind = statementRead.getDesignator().obj.getType().getKind();
+        c.invokestatic(programClass, kind == StructExt.Char? "$bread" : "$read", "()I");
+        store(statementRead.getDesignator());
+    }
+
+    @Override
+    public void visit(StatementIf statementIf) {
+        c.mark(elseLabels.pop());
+    }
+
+    @Override
+    public void visit(StatementFor statementFor) {
+        c.jump(GOTO, updationLabels.pop());
+        c.mark(loopEndLabels.pop());
+        conditionLabels.pop();
+    }
+
+    @Override
+    public void visit(StatementBreak statementBreak) {
+        c.jump(GOTO, loopEndLabels.peek());
+    }
+
+    @Override
+    public void visit(StatementContinue statementContinue) {
+        c.jump(GOTO, updationLabels.peek());
+    }
+
+    @Override
+    public void visit(ForHeader forHeader) {
+        c.jump(GOTO, conditionLabels.peek());
+        c.mark(bodyLabels.pop());
+    }
+
+    @Override
+    public void visit(ForInit forInit) {
+        conditionType = CodeGenerator.ConditionType.ForLoop;
+        loopEndLabels.push(c.newLabel());
+    }
+
+    @Override
+    public void visit(ForConditionBegin forConditionBegin) {
+        int condition = c.newLabel();
+        c.mark(condition);
+        conditionLabels.push(condition);
+    }
+
+    /* skip the updation on the way into the body */
+    private void forCondition() {
+        int body = c.newLabel();
+        c.jump(GOTO, body);
+        bodyLabels.push(body);
+        int updation = c.newLabel();
+        c.mark(updation);
+        updationLabels.push(updation);
+    }
+
+    @Override
+    public void visit(ForConditionSingle forConditionSingle) {
+        forCondition();
+    }
+
+    @Override
+    public void visit(ForConditionEmpty forConditionEmpty) {
+        forCondition();
+    }
+
+    @Override
+    public void visit(IfHeader ifHeader) {
+        elseLabels.push(c.newLabel());
+        statementLabels.push(c.newLabel());
+        conditionType = CodeGenerator.ConditionType.IfStmnt;
+    }
+
+    @Override
+    public void visit(StatementHeader statementHeader) {
+        c.mark(statementLabels.pop());
+    }
+
+    @Override
+    public void visit(ElseHeader elseHeader) {
+        int beyond = c.newLabel();
+        c.jump(GOTO, beyond);
+        beyondLabels.push(beyond);
+        c.mark(elseLabels.pop());
+    }
+
+    @Override
+    public void visit(StatementIfElse statementIfElse) {
+        c.mark(beyondLabels.pop());
+    }
+
+    @Override
+    public void visit(DesignatorStatementAssignExpr designatorStatementAssignExpr) {
+        store(designatorStatementAssignExpr.getDesignator());
+    }
+
+    private void increment(Designator d, int delta) {
+        if(d.obj.getKind() == Obj.Var && d.obj.getLevel() != 0) {
+            c.iinc(d.obj.getAdr(), delta);
+            return;
+        }
+
+        /* the object or the array and index stay for the store */
+        if(d.obj.getKind() == Obj.Fld) c.op(DUP);
+        else if(d.obj.getKind() == Obj.Elem) c.op(DUP2);
+        load(d);
+        c.iconst(delta);
+        c.op(IADD);
+        store(d);
+    }
+
+    @Override
+    public void visit(DesignatorStatementIncrement designatorStatementIncrement) {
+        increment(designatorStatementIncrement.getDesignator(), 1);
+    }
+
+    @Override
+    public void visit(DesignatorStatementDecrement designatorStatementDecrement) {
+        increment(designatorStatementDecrement.getDesignator(), -1);
+    }
+
+    @Override
+    public void visit(DesignatorStatementCall designatorStatementCall) {
+        Obj method = designatorStatementCall.getDesignator().obj;
+        callMethod(designatorStatementCall.getDesignator(), method);
+        if(method.getType() != TabExt.noType) {
+            c.op(POP);
+        }
+    }
+
+    @Override
+    public void visit(DesignatorStatementUnpack designatorStatementUnpack) {
+        /* the semantic pass already collected the designators */
+        ArrayList<?> list = designatorStatementUnpack.arraylist;
+        Designator dst = designatorStatementUnpack.getDesignator();
+        Designator src = designatorStatementUnpack.getDesignator1();
+        Struct srcElem = src.obj.getType().getElemType();
+        Struct dstElem = dst.obj.getType().getElemType();
+        /* prefix of src is on top of the prefix of dst */
+        Obj srcArr = unpackOperand(src, "$unpackSrc$");
+        Obj dstArr = unpackOperand(dst, "$unpackDst$");
+
+        /* len(dst) + n <= len(src) */
+        int fits = c.newLabel();
+        loadVariable(dstArr);
+        c.op(ARRAYLENGTH);
+        c.iconst(list.size());
+        c.op(IADD);
+        loadVariable(srcArr);
+        c.op(ARRAYLENGTH);
+        c.jump(IF_ICMPLE, fits);
+        trap(2);
+        c.mark(fits);
+
+        /* the prefixes of the list designators are on the stack, the last one on top */
+        for(int i = list.size() - 1; i >= 0; i--) {
+            if(list.get(i) == null) continue;
+
+            loadVariable(srcArr);
+            c.iconst(i);
+            loadElement(srcElem);
+            store((Designator) list.get(i));
+        }
+
+        /* dst[j] = src[j + n] */
+        Obj index = hiddenLocal("$unpackIdx$", TabExt.intType);
+        int condition = c.newLabel(), beyond = c.newLabel();
+        c.iconst(0);
+        storeVariable(index);
+        c.mark(condition);
+        loadVariable(index);
+        loadVariable(dstArr);
+        c.op(ARRAYLENGTH);
+        c.jump(IF_ICMPGE, beyond);
+        loadVariable(dstArr);
+        loadVariable(index);
+        loadVariable(srcArr);
+        loadVariable(index);
+        if(list.size() > 0) {
+            c.iconst(list.size());
+            c.op(IADD);
+        }
+        loadElement(srcElem);
+        storeElement(dstElem);
+        c.iinc(index.getAdr(), 1);
+        c.jump(GOTO, condition);
+        c.mark(beyond);
+    }
+
+    /* a variable is loaded where it is needed, anything with a prefix is evaluated once into a hidden local */
+    private Obj unpackOperand(Designator d, String name) {
+        if(d.obj.getKind() == Obj.Var) return d.obj;
+
+        Obj temp = hiddenLocal(name, d.obj.getType());
+        load(d);
+        storeVariable(temp);
+        return temp;
+    }
+
+    @Override
+    public void visit(DesignatorBaseNamespace designatorBaseNamespace) {
+        if(currentClass != null && ((StructExt)currentClass.getType()).isMember(designatorBaseNamespace.obj)) {
+            c.aload(0);
+        }
+
+        loadDesignator(designatorBaseNamespace);
+    }
+
+    @Override
+    public void visit(DesignatorBaseIdent designatorBaseIdent) {
+        if(currentClass != null && ((StructExt)currentClass.getType()).isMember(designatorBaseIdent.obj)) {
+            c.aload(0);
+        }
+
+        loadDesignator(designatorBaseIdent);
+    }
+
+    @Override
+    public void visit(DesignatorSuffixArray designatorSuffixArray) {
+        loadDesignator(designatorSuffixArray);
+    }
+
+    @Override
+    public void visit(DesignatorSuffixDot designatorSuffixDot) {
+        loadDesignator(designatorSuffixDot);
+    }
+
+    @Override
+    public void visit(ConditionSingle conditionSingle) {
+        OrCondition(conditionSingle);
+    }
+
+    @Override
+    public void visit(ConditionList conditionList) {
+        OrCondition(conditionList);
+    }
+
+    /* wherever the condition leads when false */
+    private int falseLabel() {
+        return conditionType == CodeGenerator.ConditionType.ForLoop? loopEndLabels.peek() : elseLabels.peek();
+    }
+
+    /* constant conditions, true falls through, false always jumps */
+    private boolean foldedCondition(CondFact condFact) {
+        Obj value = constants.get(condFact);
+        if(value == null) return false;
+
+        if(value.getAdr() == 0) c.jump(GOTO, falseLabel());
+        return true;
+    }
+
+    @Override
+    public void visit(CondFactRelExpr condFactRelExpr) {
+        if(foldedCondition(condFactRelExpr)) return;
+        int op = falseJumps.get(condFactRelExpr.getRelOp().getClass());
+        if(condFactRelExpr.getExpr().struct.isRefType()) op += IF_ACMPEQ - IF_ICMPEQ;
+        c.jump(op, falseLabel());
+    }
+
+    @Override
+    public void visit(CondFactExprSingle condFactExprSingle) {
+        if(foldedCondition(condFactExprSingle)) return;
+        c.jump(IFEQ, falseLabel());
+    }
+
+    @Override
+    public void visit(ExprMinusTerm exprMinusTerm) {
+        if(loadFolded(exprMinusTerm)) return;
+        c.op(INEG);
+    }
+
+    @Override
+    public void visit(ExprTerm exprTerm) {
+        loadFolded(exprTerm);
+    }
+
+    @Override
+    public void visit(TermFactor termFactor) {
+        loadFolded(termFactor);
+    }
+
+    @Override
+    public void visit(FactorExpr factorExpr) {
+        loadFolded(factorExpr);
+    }
+
+    @Override
+    public void visit(FactorDesignator factorDesignator) {
+        loadFolded(factorDesignator);
+    }
+
+    @Override
+    public void visit(FactorConstVals factorConstVals) {
+        loadFolded(factorConstVals);
+    }
+
+    @Override
+    public void visit(FactorNewArray factorNewArray) {
+        Struct elemType = factorNewArray.getType().struct;
+        if(elemType.getKind() == StructExt.Char) c.newarray(T_BYTE);
+        else if(elemType.getKind() == StructExt.Class) c.anewarray(className(elemType));
+        else c.newarray(T_INT);
+    }
+
+    @Override
+    public void visit(FactorCall factorCall) {
+        callMethod(factorCall.getDesignator(), factorCall.getDesignator().obj);
+    }
+
+    @Override
+    public void visit(FactorNewTypeNoPars factorNewTypeNoPars) {
+        String name = className(factorNewTypeNoPars.struct);
+        c.anew(name);
+        c.op(DUP);
+        c.invokespecial(name, "<init>", "()V");
+    }
+
+    @Override
+    public void visit(ExprAddop exprAddop) {
+        if(loadFolded(exprAddop)) return;
+        c.op(exprAddop.getAddOp() instanceof Plus? IADD : ISUB);
+    }
+
+    @Override
+    public void visit(TermMulOp termMulOp) {
+        if(loadFolded(termMulOp)) return;
+        MulOp m = termMulOp.getMulOp();
+        c.op(m instanceof Mul? IMUL : m instanceof Div? IDIV : IREM);
+    }
+
+    /* print, read and their char versions as static methods of the program class, so the classes need nothing
+     * but the JDK. the same formatting as rs.etf.pp1.mj.runtime.Run */
+    private void addRuntime(ClassWriter cw) {
+        int access = ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC;
+
+        /* $print(value, width) */
+        Bytecode print = new Bytecode(cw, 2);
+        print.iload(0);
+        print.invokestatic("java/lang/Integer", "toString", "(I)Ljava/lang/String;");
+        print.astore(2);
+        print.aload(2);
+        print.invokevirtual("java/lang/String", "length", "()I");
+        print.istore(3);
+        pad(print, 3, 1);
+        print.getstatic("java/lang/System", "out", "L" + OUT + ";");
+        print.aload(2);
+        print.invokevirtual(OUT, "print", "(Ljava/lang/String;)V");
+        print.op(RETURN);
+        cw.addMethod(access, "$print", "(II)V", print);
+
+        /* $bprint(value, width) */
+        Bytecode bprint = new Bytecode(cw, 2);
+        bprint.iconst(1);
+        bprint.istore(2);
+        pad(bprint, 2, 1);
+        bprint.getstatic("java/lang/System", "out", "L" + OUT + ";");
+        bprint.iload(0);
+        bprint.op(I2C);
+        bprint.invokevirtual(OUT, "print", "(C)V");
+        bprint.op(RETURN);
+        cw.addMethod(access, "$bprint", "(II)V", bprint);
+
+        Bytecode bread = new Bytecode(cw, 0);
+        readByte(bread);
+        bread.op(IRETURN);
+        cw.addMethod(access, "$bread", "()I", bread);
+
+        /* $read: skip to the first digit, a '-' right before it makes the number negative */
+        Bytecode read = new Bytecode(cw, 0);
+        int skip = read.newLabel(), notDigit = read.newLabel(), more = read.newLabel(), digits = read.newLabel();
+        int done = read.newLabel(), positive = read.newLabel();
+        read.iconst(0);
+        read.istore(0);
+        read.iconst(' ');
+        read.istore(1);
+        readByte(read);
+        read.istore(2);
+        read.mark(skip);
+        read.iload(2);
+        read.iconst('0');
+        read.jump(IF_ICMPLT, notDigit);
+        read.iload(2);
+        read.iconst('9');
+        read.jump(IF_ICMPLE, digits);
+        read.mark(notDigit);
+        read.iload(2);
+        read.iconst(-1);
+        read.jump(IF_ICMPNE, more);
+        read.anew(TRAP);
+        read.op(DUP);
+        read.ldc("unexpected end of input");
+        read.invokespecial(TRAP, "<init>", "(Ljava/lang/String;)V");
+        read.op(ATHROW);
+        read.mark(more);
+        read.iload(2);
+        read.istore(1);
+        readByte(read);
+        read.istore(2);
+        read.jump(GOTO, skip);
+        read.mark(digits);
+        read.iload(2);
+        read.iconst('0');
+        read.jump(IF_ICMPLT, done);
+        read.iload(2);
+        read.iconst('9');
+        read.jump(IF_ICMPGT, done);
+        read.iconst(10);
+        read.iload(0);
+        read.op(IMUL);
+        read.iload(2);
+        read.op(IADD);
+        read.iconst('0');
+        read.op(ISUB);
+        read.istore(0);
+        readByte(read);
+        read.istore(2);
+        read.jump(GOTO, digits);
+        read.mark(done);
+        read.iload(1);
+        read.iconst('-');
+        read.jump(IF_ICMPNE, positive);
+        read.iload(0);
+        read.op(INEG);
+        read.op(IRETURN);
+        read.mark(positive);
+        read.iload(0);
+        read.op(IRETURN);
+        cw.addMethod(access, "$read", "()I", read);
+    }
+
+    /* spaces while the counter is below the width */
+    private static void pad(Bytecode code, int counter, int width) {
+        int loop = code.newLabel(), done = code.newLabel();
+        code.mark(loop);
+        code.iload(counter);
+        code.iload(width);
+        code.jump(IF_ICMPGE, done);
+        code.getstatic("java/lang/System", "out", "L" + OUT + ";");
+        code.iconst(' ');
+        code.invokevirtual(OUT, "print", "(C)V");
+        code.iinc(counter, 1);
+        code.jump(GOTO, loop);
+        code.mark(done);
+    }
+
+    private static void readByte(Bytecode code) {
+        code.getstatic("java/lang/System", "in", "L" + IN + ";");
+        code.invokevirtual(IN, "read", "()I");
+    }
+}
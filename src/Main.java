@@ -1,10 +1,22 @@
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import ast.Visitor;
 import java_cup.runtime.Symbol;
 
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
 import org.apache.log4j.xml.DOMConfigurator;
 
 import ast.Program;
@@ -13,29 +25,163 @@ import rs.etf.pp1.symboltable.concepts.Struct;
 import rs.etf.pp1.symboltable.visitors.DumpSymbolTableVisitor;
 import util.Log4JUtils;
 import rs.etf.pp1.symboltable.*;
+import util.codegen.ClassTables;
 import util.codegen.CodeExt;
+import util.codegen.ControlFlowGraph;
+import util.codegen.DeadCode;
+import util.codegen.GcMaps;
+import util.codegen.Inliner;
+import util.codegen.InstructionList;
+import util.codegen.LoopOptimizer;
+import util.codegen.Peephole;
+import util.codegen.StaticInitializers;
+import util.semantics.DumpSymbolTableVisitorExt;
+import util.semantics.QualifiedNames;
 import util.semantics.TabExt;
 
 public class Main {
+	static final String JVM_OPTION = "-jvm";
+	static final String GC_OPTION = "-gc";
 
-	static {
+	/* console and the log file from config/log4j.xml, batch workers log on their own */
+	static void configureLogging() {
 		DOMConfigurator.configure("config/log4j.xml");
 		Log4JUtils.instance().prepareLogFile(Logger.getRootLogger());
 	}
 
+	/* errors only, tagged with the source, batch workers compile side by side */
+	static void configureWorkerLogging() {
+		Logger root = Logger.getRootLogger();
+		root.removeAllAppenders();
+		root.setLevel(Level.ERROR);
+		root.addAppender(new ConsoleAppender(new PatternLayout("%-5p %X{source} - %m%n"), ConsoleAppender.SYSTEM_ERR));
+	}
+
 	private static void initTab() {
 		TabExt.init();
 	}
 	
 	public static void main(String[] args) throws Exception {
-		
+		configureLogging();
+		if(args.length > 0 && args[0].equals("-batch")) {
+			/* -batch <output dir> <sources or directories>... [options] */
+			System.exit(BatchCompiler.run(args) ? 0 : 1);
+		}
+		if(args.length > 0 && args[0].equals("-server")) {
+			/* -server [port], compile with CompileClient */
+			CompileServer.run(args);
+			return;
+		}
+
+		if(args.length > 0 && args[0].equals("-cachestats")) {
+			/* -cachestats <cache dir> */
+			Logger.getLogger(Main.class).info(CompileCache.report(new File(args[1])));
+			return;
+		}
+
+		if(args.length < 2) throw new IOException();
+		compile(new File(args[0]), new File(args[1]), Arrays.copyOfRange(args, 2, args.length));
+	}
+
+	/* -noinline, -inline=N, -cache=dir and -cachesize=MiB after the source and object file,
+	 * -gc appends the maps the collector of util.runtime needs, -jvm writes a jar of JVM classes instead */
+	static boolean compile(File sourceCode, File objectFile, String[] options) throws Exception {
+		MDC.put("source", sourceCode.getName());
+		if(Arrays.asList(options).contains(JVM_OPTION)) return compileJvm(sourceCode, objectFile);
+		int inlineBudget = parseInlineBudget(options, 0);
+		boolean gcMaps = Arrays.asList(options).contains(GC_OPTION);
+		CompileCache cache = CompileCache.fromOptions(options, 0);
+		if(cache == null) return compile(sourceCode, objectFile, inlineBudget, gcMaps);
+		return cache.compile(sourceCode, objectFile, inlineBudget, gcMaps);
+	}
+
+	static int parseInlineBudget(String[] args, int from) {
 		Logger log = Logger.getLogger(Main.class);
+		int inlineBudget = Inliner.DEFAULT_BUDGET;
+		for(int i = from; i < args.length; i++) {
+			if(args[i].equals("-noinline")) inlineBudget = 0;
+			else if(args[i].startsWith("-inline=")) inlineBudget = Integer.parseInt(args[i].substring("-inline=".length()));
+			else if(!args[i].equals(JVM_OPTION) && !args[i].equals(GC_OPTION) && !CompileCache.isOption(args[i])) log.error("Unknown option " + args[i]);
+		}
+		return inlineBudget;
+	}
+
+	/* one source to one object file, false on syntax or semantic errors and when the asked for GC maps cannot be
+	 * made. leaves the static compiler state (symbol table, code buffer) behind, the next call in the same class
+	 * loader starts from scratch */
+	static boolean compile(File sourceCode, File objectFile, int inlineBudget, boolean gcMaps) throws Exception {
+		CodeExt.reset();
+		QualifiedNames.reset();
+		Program prog = parse(sourceCode);
+		if(prog == null) return false;
+		SemanticAnalyzer semanticAnalyzer = analyze(prog);
+		if(semanticAnalyzer == null) return false;
 
+		/* code generation */
+		CodeGenerator codeGenerator = new CodeGenerator(semanticAnalyzer.getConstants(), semanticAnalyzer.getUnpackLengths());
+		prog.traverseBottomUp(codeGenerator);
+		if(codeGenerator.isError()) return false;
+		/* optimization passes over the generated code */
+		InstructionList code = InstructionList.decode();
+		ArrayList<ControlFlowGraph> methods = ControlFlowGraph.build(code);
+		new StaticInitializers().run(code, methods);
+		if(inlineBudget > 0) new Inliner(inlineBudget).run(code, methods);
+		new DeadCode().run(code, methods);
+		new ClassTables().run(code, methods);
+		new LoopOptimizer().run(code, methods);
+		ControlFlowGraph.emit(code, methods);
+		Peephole.withDefaultRules().run(code);
+		code.encode();
+		GcMaps maps = gcMaps? new GcMaps(prog.obj) : null;
+		if(maps != null) maps.run(code);
+		/* without maps the collector could not run, better no object file than one that -gc turns down */
+		if(maps != null && !maps.isComplete()) {
+			Logger.getLogger(Main.class).error("GC maps incomplete, compile without " + GC_OPTION);
+			return false;
+		}
+		if(objectFile.exists()) objectFile.delete();
+		CodeExt.write(Files.newOutputStream(objectFile.toPath()));
+		/* Code.write closes its stream, the maps go after the code */
+		if(maps != null) {
+			try(OutputStream out = Files.newOutputStream(objectFile.toPath(), StandardOpenOption.APPEND)) {
+				maps.write(out);
+			}
+		}
+		return true;
+	}
+
+	/* one source to a jar of JVM classes, run with java -jar */
+	static boolean compileJvm(File sourceCode, File jarFile) throws Exception {
+		CodeExt.reset();
+		QualifiedNames.reset();
+		Program prog = parse(sourceCode);
+		if(prog == null) return false;
+		SemanticAnalyzer semanticAnalyzer = analyze(prog);
+		if(semanticAnalyzer == null) return false;
+
+		JvmGenerator jvmGenerator = new JvmGenerator(semanticAnalyzer.getConstants());
+		prog.traverseBottomUp(jvmGenerator);
+		if(jvmGenerator.isError()) return false;
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, jvmGenerator.getMainClass());
+		try(JarOutputStream jar = new JarOutputStream(Files.newOutputStream(jarFile.toPath()), manifest)) {
+			for(Map.Entry<String, byte[]> classFile : jvmGenerator.getClassFiles().entrySet()) {
+				jar.putNextEntry(new JarEntry(classFile.getKey() + ".class"));
+				jar.write(classFile.getValue());
+				jar.closeEntry();
+			}
+		}
+		return true;
+	}
+
+	/* null on syntax errors */
+	private static Program parse(File sourceCode) throws Exception {
+		Logger log = Logger.getLogger(Main.class);
+		MDC.put("source", sourceCode.getName());
 		Reader br = null;
 		try {
-			if(args.length < 2) throw new IOException();
-
-			File sourceCode = new File(args[0]);
 			log.info("Compiling source file: " + sourceCode.getAbsolutePath());
 			
 			br = new BufferedReader(new FileReader(sourceCode));
@@ -50,31 +196,31 @@ public class Main {
 			log.info("===================================");
 			if(p.getError()) {
 				log.info("Syntax errors detected, aborting.");
-				return;
+				return null;
 			}
-			/* semantic analysis */
-			initTab();
-			SemanticAnalyzer semanticAnalyzer = new SemanticAnalyzer();
-			prog.traverseBottomUp(semanticAnalyzer);
-			/* */
-			DumpSymbolTableVisitor dumpSymbolTableVisitor = new DumpSymbolTableVisitor();
-			TabExt.dump(dumpSymbolTableVisitor);
-			if(semanticAnalyzer.isError()) {
-				log.error("Semantic errors detected, aborting");
-				return;
-			}
-
-			/* code generation */
-			Visitor codeGenerator = new CodeGenerator();
-			prog.traverseBottomUp(codeGenerator);
-			File f = new File(args[1]);
-			if(f.exists()) f.delete();
-			CodeExt.write(Files.newOutputStream(f.toPath()));
+			return prog;
 		}
 		finally {
 			if (br != null) try { br.close(); } catch (IOException e1) { log.error(e1.getMessage(), e1); }
 		}
+	}
 
+	/* null on semantic errors */
+	private static SemanticAnalyzer analyze(Program prog) {
+		Logger log = Logger.getLogger(Main.class);
+		initTab();
+		SemanticAnalyzer semanticAnalyzer = new SemanticAnalyzer();
+		prog.traverseBottomUp(semanticAnalyzer);
+		/* goes to stdout, batch workers only report errors */
+		if(log.isInfoEnabled()) {
+			DumpSymbolTableVisitor dumpSymbolTableVisitor = new DumpSymbolTableVisitorExt();
+			TabExt.dump(dumpSymbolTableVisitor);
+		}
+		if(semanticAnalyzer.isError()) {
+			log.error("Semantic errors detected, aborting");
+			return null;
+		}
+		return semanticAnalyzer;
 	}
 	
 	
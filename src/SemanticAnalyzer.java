@@ -4,11 +4,14 @@ import rs.etf.pp1.symboltable.concepts.Struct;
 
 import org.apache.log4j.Logger;
 import util.codegen.CodeExt;
+import util.semantics.QualifiedNames;
 import util.semantics.StructExt;
 import util.semantics.TabExt;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 public class SemanticAnalyzer extends VisitorAdaptor {
@@ -21,12 +24,36 @@ public class SemanticAnalyzer extends VisitorAdaptor {
     private boolean returnFound = false;
     private boolean staticScope = false;
     private int loopDepth = 0;
-    private final int globalVarNum = 30;
+    /* Expr, Term and Factor nodes with a value known at compile time */
+    private final Map<SyntaxNode, Obj> constants = new IdentityHashMap<>();
+    /* unpack statements whose destination length is known at compile time */
+    private final Map<DesignatorStatementUnpack, Integer> unpackLengths = new IdentityHashMap<>();
+    /* local arrays of the current method only ever assigned new T[k], -1 once anything else is assigned */
+    private final Map<Obj, Integer> arraySizes = new IdentityHashMap<>();
+    private final ArrayList<DesignatorStatementUnpack> unpacks = new ArrayList<>();
 
     public boolean isError() {
         return error;
     }
 
+    public Map<SyntaxNode, Obj> getConstants() {
+        return constants;
+    }
+
+    public Map<DesignatorStatementUnpack, Integer> getUnpackLengths() {
+        return unpackLengths;
+    }
+
+    private void foldConstant(SyntaxNode node, int value) {
+        constants.put(node, new Obj(Obj.Con, "$constval", TabExt.intType, value, 0));
+    }
+
+    private void propagateConstant(SyntaxNode node, SyntaxNode child) {
+        if(constants.containsKey(child)) {
+            constants.put(node, constants.get(child));
+        }
+    }
+
     public void reportError(String message, SyntaxNode info) {
         error = true;
         StringBuilder msg = new StringBuilder(message);
@@ -46,17 +73,17 @@ public class SemanticAnalyzer extends VisitorAdaptor {
 
     private boolean checkType(String name) {
         return TabExt.find(name).getKind() == Obj.Type ||
-                (currentNamespace != null && TabExt.find(currentNamespace + "::" + name).getKind() == Obj.Type);
+                (currentNamespace != null && TabExt.find(QualifiedNames.inNamespace(currentNamespace, name)).getKind() == Obj.Type);
     }
 
     private String classDeclCheck(String name, SyntaxNode node) {
         if(TabExt.find(name) != TabExt.noObj ||
-                currentNamespace!= null && TabExt.find(currentNamespace + "::" + name) != TabExt.noObj) {
+                currentNamespace!= null && TabExt.find(QualifiedNames.inNamespace(currentNamespace, name)) != TabExt.noObj) {
             reportError("Class declaration " + name + " masks another name", node);
             return null;
         }
 
-        name = currentNamespace == null? name : currentNamespace + "::" + name;
+        name = currentNamespace == null? name : QualifiedNames.inNamespace(currentNamespace, name);
         return name;
     }
 
@@ -76,6 +103,24 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         return true;
     }
 
+    /* the shared parent method is replaced in the class scope by a copy, this gets the type of the subclass */
+    private Obj overrideCopy(Obj parentMethod) {
+        Obj copy = new Obj(Obj.Meth, parentMethod.getName(), parentMethod.getType(), parentMethod.getAdr(), parentMethod.getLevel());
+        copy.setFpPos(parentMethod.getFpPos());
+        TabExt.openScope();
+        for(Obj local : parentMethod.getLocalSymbols()) {
+            TabExt.currentScope.addToLocals(new Obj(local.getKind(), local.getName(),
+                    local.getName().equals("this")? currentClass.getType() : local.getType(),
+                    local.getAdr(), local.getLevel()));
+        }
+        TabExt.chainLocalSymbols(copy);
+        TabExt.closeScope();
+
+        TabExt.currentScope.getLocals().deleteKey(parentMethod.getName());
+        TabExt.currentScope.addToLocals(copy);
+        return copy;
+    }
+
     private void addThis(Designator designator, ArrayList<Struct> paramList) {
         Struct prevType = TabExt.noType;
         if(designator instanceof DesignatorSuffixDot) {
@@ -98,13 +143,6 @@ public class SemanticAnalyzer extends VisitorAdaptor {
             reportError("Program not declared??", programName);
         }
         TabExt.openScope();
-
-        /* for storing array addresses */
-        TabExt.arrSrc = TabExt.insert(Obj.Var, "$arrSrc$", new StructExt(Struct.Array, TabExt.noType));
-        TabExt.arrDst = TabExt.insert(Obj.Var, "$arrDst$", new StructExt(Struct.Array, TabExt.noType));
-        for(int i = 0; i < globalVarNum; i ++) {
-            TabExt.addGlobal(TabExt.insert(Obj.Var, "$typeInfo" + i + "$", TabExt.intType));
-        }
     }
 
     @Override
@@ -127,7 +165,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         String typeName = typeSingle.getTypename();
         Obj type = TabExt.find(typeName);
         if(type == TabExt.noObj || type.getKind() != Obj.Type) {
-            type = TabExt.find(currentNamespace + "::" + typeName);
+            type = TabExt.find(QualifiedNames.inNamespace(currentNamespace, typeName));
             if(type == TabExt.noObj || type.getKind() != Obj.Type){
                 reportError("Type does not exist.", typeSingle);
                 return;
@@ -141,7 +179,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
     @Override
     public void visit(TypeNamespace typeNamespace) {
         /* start declaration */
-        String typeName = typeNamespace.getTypePrefix() + "::" + typeNamespace.getTypename();
+        String typeName = QualifiedNames.inNamespace(typeNamespace.getTypePrefix(), typeNamespace.getTypename());
         Obj type = TabExt.find(typeName);
         if(type == TabExt.noObj || type.getKind() != Obj.Type) {
             reportError("Type does not exist.", typeNamespace);
@@ -172,11 +210,11 @@ public class SemanticAnalyzer extends VisitorAdaptor {
                 return;
             }
 
-            name = currentClass.getName() + "." + varDeclSingle.getVar();
+            name = ((StructExt)currentClass.getType()).getStaticName(varDeclSingle.getVar());
             isVar = true;
         } else {
             name = (currentNamespace != null && currentClass == null && currentMethod == null)?
-                    currentNamespace + "::" + varDeclSingle.getVar() : varDeclSingle.getVar();
+                    QualifiedNames.inNamespace(currentNamespace, varDeclSingle.getVar()) : varDeclSingle.getVar();
             isVar = currentClass == null || currentMethod != null;
         }
 
@@ -187,6 +225,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
             return;
         }
 
+        if(staticScope) ((StructExt)currentClass.getType()).staticDeclared();
         reportInfo("Declared variable " + name, varDeclSingle);
     }
 
@@ -240,12 +279,12 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         String name = constDecl.getName();
         /* no need to check type specifically */
         if(TabExt.find(name) != TabExt.noObj ||
-                currentNamespace!= null && TabExt.find(currentNamespace + "::" + name) != TabExt.noObj) {
+                currentNamespace!= null && TabExt.find(QualifiedNames.inNamespace(currentNamespace, name)) != TabExt.noObj) {
             reportError("Constant declaration " + constDecl.getName() + " masks another name", constDecl);
             return;
         }
 
-        name = currentNamespace == null? constDecl.getName() : currentNamespace + "::" + constDecl.getName();
+        name = currentNamespace == null? constDecl.getName() : QualifiedNames.inNamespace(currentNamespace, constDecl.getName());
         Obj con = TabExt.insert(Obj.Con, name, currentType.getType());
         con.setAdr(constDecl.getConstVals().obj.getAdr());
         reportInfo("Constant declared " + name, constDecl);
@@ -321,23 +360,12 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         TabExt.openScope();
         if(currentClass.getType().getElemType() != null && currentClass.getType().getElemType().getKind() == StructExt.Class) {
             Struct parentClass = currentClass.getType().getElemType();
+            /* parent members are shared, not copied. a method gets its own copy only when it is overridden.
+             * addToLocals renumbers fields, they come in the parent's order so every adr stays the same */
             for(Obj o : parentClass.getMembers()) {
-                /* better copy i guess, same with methods */
-                Obj addObj = new Obj(o.getKind(), o.getName(), o.getType(), o.getAdr(), o.getLevel());
-                TabExt.currentScope.addToLocals(addObj);
-                /* copy everything. (DB slides) */
-                if(addObj.getKind() == Obj.Meth) {
-                    addObj.setFpPos(o.getFpPos());
-                    TabExt.openScope();
-                    for(Obj local : o.getLocalSymbols()) {
-                        Obj addLocal = new Obj(local.getKind(), local.getName(),
-                                local.getName().equals("this")? currentClass.getType() : local.getType(),
-                                local.getAdr(), local.getLevel());
-                        TabExt.currentScope.addToLocals(addLocal);
-                    }
-                    TabExt.chainLocalSymbols(addObj);
-                    TabExt.closeScope();
-                    ((StructExt)currentClass.getType()).getInheritedMethods().add(addObj);
+                TabExt.currentScope.addToLocals(o);
+                if(o.getKind() == Obj.Meth) {
+                    ((StructExt)currentClass.getType()).getInheritedMethods().add(o);
                 }
             }
         } else {
@@ -352,6 +380,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         }
 
         TabExt.chainLocalSymbols(currentClass.getType());
+        ((StructExt)currentClass.getType()).buildVirtualTable();
         TabExt.closeScope();
         currentMethod = null;
         currentClass = null;
@@ -376,7 +405,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
             return;
         }
 
-        String name = (currentNamespace != null && currentClass == null)? currentNamespace + "::" + methodName.getName() : methodName.getName();
+        String name = (currentNamespace != null && currentClass == null)? QualifiedNames.inNamespace(currentNamespace, methodName.getName()) : methodName.getName();
         oldObj = TabExt.find(name);
         /* override method, since it was found in current scope */
         if(currentClass != null && oldObj.getLevel() == 1 && oldObj.getKind() == Obj.Meth) {
@@ -392,7 +421,9 @@ public class SemanticAnalyzer extends VisitorAdaptor {
                 return;
             }
 
-            currentMethod = methodName.obj = oldObj;
+            currentMethod = methodName.obj = overrideCopy(oldObj);
+            inheritedMethods.remove(oldObj);
+            inheritedMethods.add(currentMethod);
         } else {
             /* insert new method */
             newObj = TabExt.insert(Obj.Meth, name, methodName.getMethType().struct);
@@ -431,6 +462,14 @@ public class SemanticAnalyzer extends VisitorAdaptor {
             reportError("Return statetement not found in method " + methodDecl.getMethodName().getName() + " declared", methodDecl);
         }
 
+        /* every assignment of the method has been seen now */
+        for(DesignatorStatementUnpack unpack : unpacks) {
+            Integer size = arraySizes.get(unpack.getDesignator().obj);
+            if(size != null && size >= 0) unpackLengths.put(unpack, size);
+        }
+        unpacks.clear();
+        arraySizes.clear();
+
         TabExt.chainLocalSymbols(currentMethod);
         TabExt.closeScope();
         if(currentClass != null) {
@@ -587,7 +626,8 @@ public class SemanticAnalyzer extends VisitorAdaptor {
     @Override
     /* todo:test this, and write tomorrow if needed */
     public void visit(DesignatorBaseIdent designatorBaseIdent) {
-        designatorBaseIdent.obj = TabExt.find(designatorBaseIdent.getVar());
+        Obj innermost = TabExt.find(designatorBaseIdent.getVar());
+        designatorBaseIdent.obj = innermost;
 
         /* see if a local var with the given name exists */
         if(designatorBaseIdent.obj.getLevel() == 1) {
@@ -597,23 +637,19 @@ public class SemanticAnalyzer extends VisitorAdaptor {
 
         /* see if a static var with the name exists */
         if(currentClass != null) {
-            for(Struct currentType = currentClass.getType(); currentType != null; currentType = currentType.getElemType()) {
-                String namePrefix =  ((StructExt)currentType).getClassName() + ".";
-                designatorBaseIdent.obj = TabExt.find(namePrefix + designatorBaseIdent.getVar());
-                if(designatorBaseIdent.obj != TabExt.noObj) {
-                    reportInfo("Caught designator " + designatorBaseIdent.obj.getName(), designatorBaseIdent);
-                    return;
-                }
+            designatorBaseIdent.obj = ((StructExt)currentClass.getType()).findStatic(designatorBaseIdent.getVar());
+            if(designatorBaseIdent.obj != TabExt.noObj) {
+                reportInfo("Caught designator " + designatorBaseIdent.obj.getName(), designatorBaseIdent);
+                return;
             }
         }
 
         /* find a global??? var */
-        designatorBaseIdent.obj = TabExt.find(designatorBaseIdent.getVar());
+        designatorBaseIdent.obj = innermost;
 
         if((designatorBaseIdent.obj == TabExt.noObj)) {
             if(currentNamespace != null) {
-                String namePrefix = currentNamespace + "::";
-                designatorBaseIdent.obj = TabExt.find(namePrefix + designatorBaseIdent.getVar());
+                designatorBaseIdent.obj = TabExt.find(QualifiedNames.inNamespace(currentNamespace, designatorBaseIdent.getVar()));
             }
 
             if(designatorBaseIdent.obj == TabExt.noObj) {
@@ -629,7 +665,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
     @Override
     public void visit(DesignatorBaseNamespace designatorBaseNamespace) {
         /* should return class obj if we are accessing a static */
-        designatorBaseNamespace.obj = TabExt.find(designatorBaseNamespace.getNameSpace() + "::" + designatorBaseNamespace.getVar());
+        designatorBaseNamespace.obj = TabExt.find(QualifiedNames.inNamespace(designatorBaseNamespace.getNameSpace(), designatorBaseNamespace.getVar()));
         if(designatorBaseNamespace.obj.equals(TabExt.noObj)) {
             reportError("Designator not found " + designatorBaseNamespace.getVar(), designatorBaseNamespace);
             return;
@@ -670,13 +706,10 @@ public class SemanticAnalyzer extends VisitorAdaptor {
 
         /* accessing a static variable, probably. */
         if(designatorObj.getKind() == Obj.Type) {
-            for(Struct currentType = designatorObj.getType(); currentType != null; currentType = currentType.getElemType()) {
-                String namePrefix = ((StructExt)currentType).getClassName() + ".";
-                designatorSuffixDot.obj = TabExt.find(namePrefix + designatorSuffixDot.getVar());
-                if(designatorSuffixDot.obj != TabExt.noObj) {
-                    reportInfo("Caught designator " + designatorSuffixDot.getVar(), designatorSuffixDot);
-                    return;
-                }
+            designatorSuffixDot.obj = ((StructExt)designatorObj.getType()).findStatic(designatorSuffixDot.getVar());
+            if(designatorSuffixDot.obj != TabExt.noObj) {
+                reportInfo("Caught designator " + designatorSuffixDot.getVar(), designatorSuffixDot);
+                return;
             }
         }
 
@@ -690,12 +723,11 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         }
 
         /* find the field */
-        for(Obj field : designatorObj.getType().getMembers()) {
-            if(field.getName().equals(designatorSuffixDot.getVar())) {
-                designatorSuffixDot.obj = field;
-                reportInfo("Caught designator " + designatorSuffixDot.getVar(), designatorSuffixDot);
-                return;
-            }
+        Obj field = ((StructExt)designatorObj.getType()).findMember(designatorSuffixDot.getVar());
+        if(field != null) {
+            designatorSuffixDot.obj = field;
+            reportInfo("Caught designator " + designatorSuffixDot.getVar(), designatorSuffixDot);
+            return;
         }
 
         reportError("Could not find designator " + designatorSuffixDot.getVar(), designatorSuffixDot);
@@ -750,9 +782,31 @@ public class SemanticAnalyzer extends VisitorAdaptor {
             return;
         }
 
+        if(isLocalArray(designator)) {
+            Integer size = newArraySize(designatorStatementAssignExpr.getExpr());
+            Integer old = arraySizes.get(designator.obj);
+            arraySizes.put(designator.obj, size == null || (old != null && !old.equals(size))? -1 : size);
+        }
+
         reportInfo("Assign found for " + designatorStatementAssignExpr.getDesignator().obj.getName(), designatorStatementAssignExpr);
     }
 
+    /* plain local array of the current method, parameters come from the caller */
+    private boolean isLocalArray(Designator designator) {
+        Obj obj = designator.obj;
+        return designator instanceof DesignatorBaseIdent && currentMethod != null && obj.getKind() == Obj.Var
+                && obj.getLevel() == 1 && obj.getAdr() >= currentMethod.getFpPos() && obj.getType().getKind() == Struct.Array;
+    }
+
+    /* k for new T[k] with k known, null otherwise */
+    private Integer newArraySize(Expr expr) {
+        if(!(expr instanceof ExprTerm) || !(((ExprTerm) expr).getTerm() instanceof TermFactor)) return null;
+        Factor factor = ((TermFactor) ((ExprTerm) expr).getTerm()).getFactor();
+        if(!(factor instanceof FactorNewArray)) return null;
+        Obj size = constants.get(((FactorNewArray) factor).getExpr());
+        return size != null? size.getAdr() : null;
+    }
+
     @Override
     public void visit(DesignatorStatementCall designatorStatementCall) {
         Designator designator = designatorStatementCall.getDesignator();
@@ -800,6 +854,10 @@ public class SemanticAnalyzer extends VisitorAdaptor {
             }
         }
 
+        if(isLocalArray(designatorStatementUnpack.getDesignator())) {
+            unpacks.add(designatorStatementUnpack);
+        }
+
         reportInfo("Unpack statement OK", designatorStatementUnpack);
     }
 
@@ -823,16 +881,21 @@ public class SemanticAnalyzer extends VisitorAdaptor {
     @Override
     public void visit(FactorConstVals factorConstVals) {
         factorConstVals.struct = factorConstVals.getConstVals().obj.getType();
+        constants.put(factorConstVals, factorConstVals.getConstVals().obj);
     }
 
     @Override
     public void visit(FactorDesignator factorDesignator) {
         factorDesignator.struct = factorDesignator.getDesignator().obj.getType();
+        if(factorDesignator.getDesignator().obj.getKind() == Obj.Con) {
+            constants.put(factorDesignator, factorDesignator.getDesignator().obj);
+        }
     }
 
     @Override
     public void visit(FactorExpr factorExpr) {
         factorExpr.struct = factorExpr.getExpr().struct;
+        propagateConstant(factorExpr, factorExpr.getExpr());
     }
 
     @Override
@@ -894,6 +957,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
     @Override
     public void visit(TermFactor termFactor) {
         termFactor.struct = termFactor.getFactor().struct;
+        propagateConstant(termFactor, termFactor.getFactor());
     }
 
     @Override
@@ -906,11 +970,27 @@ public class SemanticAnalyzer extends VisitorAdaptor {
 
         reportInfo("Mul!!", termMulOp);
         termMulOp.struct = termMulOp.getFactor().struct;
+
+        Obj left = constants.get(termMulOp.getTerm()), right = constants.get(termMulOp.getFactor());
+        if(left == null || right == null) return;
+
+        MulOp m = termMulOp.getMulOp();
+        if(m instanceof Mul) {
+            foldConstant(termMulOp, left.getAdr() * right.getAdr());
+        } else if(right.getAdr() == 0) {
+            /* keep the division so it still traps at runtime */
+            reportInfo("Division by constant zero", termMulOp);
+        } else if(m instanceof Div) {
+            foldConstant(termMulOp, left.getAdr() / right.getAdr());
+        } else {
+            foldConstant(termMulOp, left.getAdr() % right.getAdr());
+        }
     }
 
     @Override
     public void visit(ExprTerm exprTerm) {
         exprTerm.struct = exprTerm.getTerm().struct;
+        propagateConstant(exprTerm, exprTerm.getTerm());
     }
 
     @Override
@@ -923,6 +1003,12 @@ public class SemanticAnalyzer extends VisitorAdaptor {
 
         reportInfo("Add!!", exprAddop);
         exprAddop.struct = TabExt.intType;
+
+        Obj left = constants.get(exprAddop.getExpr()), right = constants.get(exprAddop.getTerm());
+        if(left != null && right != null) {
+            foldConstant(exprAddop, exprAddop.getAddOp() instanceof Plus?
+                    left.getAdr() + right.getAdr() : left.getAdr() - right.getAdr());
+        }
     }
 
     @Override
@@ -934,6 +1020,9 @@ public class SemanticAnalyzer extends VisitorAdaptor {
        }
 
        exprMinusTerm.struct = TabExt.intType;
+       if(constants.containsKey(exprMinusTerm.getTerm())) {
+           foldConstant(exprMinusTerm, -constants.get(exprMinusTerm.getTerm()).getAdr());
+       }
     }
 
     @Override
@@ -975,6 +1064,7 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         }
 
         condFactExprSingle.struct = TabExt.boolType;
+        propagateConstant(condFactExprSingle, condFactExprSingle.getExpr());
     }
 
     @Override
@@ -997,5 +1087,18 @@ public class SemanticAnalyzer extends VisitorAdaptor {
         } else {
             condFactRelExpr.struct = TabExt.boolType;
         }
+
+        Obj left = constants.get(condFactRelExpr.getExpr()), right = constants.get(condFactRelExpr.getExpr1());
+        if(condFactRelExpr.struct == TabExt.boolType && left != null && right != null) {
+            int l = left.getAdr(), r = right.getAdr();
+            boolean value;
+            if(relOp instanceof Equal) value = l == r;
+            else if(relOp instanceof NotEqu) value = l != r;
+            else if(relOp instanceof Greater) value = l > r;
+            else if(relOp instanceof GrEqu) value = l >= r;
+            else if(relOp instanceof Lower) value = l < r;
+            else value = l <= r;
+            constants.put(condFactRelExpr, new Obj(Obj.Con, "$constval", TabExt.boolType, value? 1 : 0, 0));
+        }
     }
 }
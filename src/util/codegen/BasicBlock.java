@@ -0,0 +1,66 @@
+package util.codegen;
+
+import java.util.ArrayList;
+
+/* straight line code, only the first instruction is jumped to and only the last one jumps */
+public class BasicBlock {
+    private final Instruction label = new Instruction(Instruction.LABEL);
+    private final ArrayList<Instruction> instructions = new ArrayList<>();
+    private final ArrayList<BasicBlock> predecessors = new ArrayList<>();
+    /* next block when the last instruction does not end the flow, no jump needed */
+    private BasicBlock fallthrough;
+    /* block the last jmp or jcc goes to */
+    private BasicBlock branch;
+
+    public Instruction getLabel() {
+        return label;
+    }
+
+    public ArrayList<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public Instruction getLast() {
+        return instructions.isEmpty()? null : instructions.get(instructions.size() - 1);
+    }
+
+    public BasicBlock getFallthrough() {
+        return fallthrough;
+    }
+
+    public void setFallthrough(BasicBlock fallthrough) {
+        this.fallthrough = fallthrough;
+    }
+
+    public BasicBlock getBranch() {
+        return branch;
+    }
+
+    public void setBranch(BasicBlock branch) {
+        this.branch = branch;
+    }
+
+    public ArrayList<BasicBlock> getSuccessors() {
+        ArrayList<BasicBlock> successors = new ArrayList<>();
+        if(fallthrough != null) successors.add(fallthrough);
+        if(branch != null && branch != fallthrough) successors.add(branch);
+        return successors;
+    }
+
+    public ArrayList<BasicBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    public int size() {
+        int size = 0;
+        for(Instruction ins : instructions) size += ins.size();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("block ").append(System.identityHashCode(this)).append('\n');
+        for(Instruction ins : instructions) sb.append("    ").append(ins).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+import util.semantics.StructExt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* writes the virtual tables at the start of main, only what a live invokevirtual can look up */
+public class ClassTables {
+    private final Logger logger = Logger.getLogger(ClassTables.class);
+    private int tables = 0;
+    private int entries = 0;
+
+    /* after dead code, the tables must not keep removed methods alive */
+    public void run(InstructionList code, ArrayList<ControlFlowGraph> graphs) {
+        Map<Integer, ControlFlowGraph> byAdr = new HashMap<>();
+        ControlFlowGraph main = null;
+        for(ControlFlowGraph graph : graphs) {
+            if(graph.getMethod() != null) byAdr.put(graph.getMethod().getAdr(), graph);
+            if(graph.getEntry().getLabel() == code.getMain()) main = graph;
+        }
+        if(main == null) return;
+
+        Set<Integer> invoked = new HashSet<>();
+        Set<Integer> instantiated = new HashSet<>();
+        for(ControlFlowGraph graph : graphs) {
+            for(BasicBlock b : graph.getBlocks()) {
+                for(Instruction ins : b.getInstructions()) {
+                    if(ins.getOpcode() == CodeExt.invokevirtual) invoked.add(ins.getOperand(0));
+                    /* the type CodeGenerator recorded at the new_ site */
+                    if(ins.getOpcode() == CodeExt.new_ && ins.getAllocated() instanceof StructExt) {
+                        instantiated.add(((StructExt) ins.getAllocated()).getTvfp());
+                    }
+                }
+            }
+        }
+
+        /* classes that resolve every looked up slot to the same methods share one table */
+        Map<List<Object>, Integer> shared = new HashMap<>();
+        Map<Integer, Integer> replacement = new HashMap<>();
+        ArrayList<Instruction> init = new ArrayList<>();
+        for(StructExt cl : CodeExt.getClasses()) {
+            if(!instantiated.contains(cl.getTvfp())) continue;
+            Map<Integer, ControlFlowGraph> table = new LinkedHashMap<>();
+            for(Map.Entry<String, Integer> slot : cl.getVirtualTable().entrySet()) {
+                if(!invoked.contains(slot.getValue())) continue;
+                ControlFlowGraph target = byAdr.get(cl.getSlotMethod(slot.getValue()).getAdr());
+                if(target != null) table.put(slot.getValue(), target);
+            }
+            /* nothing is ever looked up in it, the zero filled data is as good as a table */
+            if(table.isEmpty()) continue;
+
+            List<Object> key = new ArrayList<>();
+            for(Map.Entry<Integer, ControlFlowGraph> entry : table.entrySet()) {
+                key.add(Arrays.asList(entry.getKey(), entry.getValue()));
+            }
+            Integer existing = shared.get(key);
+            if(existing != null) {
+                replacement.put(cl.getTvfp(), existing);
+                continue;
+            }
+            shared.put(key, cl.getTvfp());
+            writeTable(init, cl.getTvfp(), table);
+        }
+
+        for(ControlFlowGraph graph : graphs) {
+            for(BasicBlock b : graph.getBlocks()) {
+                List<Instruction> instructions = b.getInstructions();
+                for(int i = 0; i < instructions.size(); i++) {
+                    StructExt table = instructions.get(i).getTable();
+                    if(table != null && replacement.containsKey(table.getTvfp())) {
+                        Instruction pointer = Instruction.constant(replacement.get(table.getTvfp()));
+                        pointer.setTable(table);
+                        instructions.set(i, pointer);
+                    }
+                }
+            }
+        }
+
+        /* before the static initializers are called, they may already use virtual calls */
+        main.getEntry().getInstructions().addAll(1, init);
+        logger.info("Class tables written for " + tables + " of " + CodeExt.getClasses().size() + " classes, "
+                + entries + " entries, " + replacement.size() + " shared");
+    }
+
+    /* slot, -1, address for every entry and -2 at the end, zero words are already there */
+    private void writeTable(ArrayList<Instruction> init, int tvfp, Map<Integer, ControlFlowGraph> table) {
+        int writePtr = tvfp;
+        for(Map.Entry<Integer, ControlFlowGraph> entry : table.entrySet()) {
+            if(entry.getKey() != 0) {
+                init.add(Instruction.constant(entry.getKey()));
+                init.add(new Instruction(CodeExt.putstatic, writePtr));
+            }
+            writePtr++;
+            init.add(Instruction.constant(-1));
+            init.add(new Instruction(CodeExt.putstatic, writePtr++));
+            init.add(Instruction.jump(CodeExt.const_, entry.getValue().getEntry().getLabel()));
+            init.add(new Instruction(CodeExt.putstatic, writePtr++));
+            entries++;
+        }
+        init.add(Instruction.constant(-2));
+        init.add(new Instruction(CodeExt.putstatic, writePtr));
+        tables++;
+    }
+}
@@ -2,30 +2,89 @@ package util.codegen;
 
 import rs.etf.pp1.mj.runtime.Code;
 import rs.etf.pp1.symboltable.concepts.Obj;
+import rs.etf.pp1.symboltable.concepts.Struct;
 import util.semantics.StructExt;
 import util.semantics.TabExt;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 public class CodeExt extends Code {
     private static final ArrayList<StructExt> classes = new ArrayList<>();
     private static final ArrayList<Obj> staticInitList = new ArrayList<>();
+    /* every method entry, addresses are fixed up when the code is rewritten */
+    private static final ArrayList<Obj> methods = new ArrayList<>();
+    /* pcs of const_ instructions that load a code address */
+    private static final ArrayList<Integer> relocations = new ArrayList<>();
+    /* pc of every new_ and newarray -> the type it allocates */
+    private static final Map<Integer, Struct> allocations = new HashMap<>();
+    /* pc of the const of every new_ -> the class whose table address it loads */
+    private static final Map<Integer, StructExt> tablePointers = new HashMap<>();
+
+    /* Code keeps everything in statics, a compilation in a class loader that already ran one starts here */
+    public static void reset() {
+        buf = new byte[buf.length];
+        pc = 0;
+        mainPc = -1;
+        dataSize = 0;
+        greska = false;
+        classes.clear();
+        staticInitList.clear();
+        methods.clear();
+        relocations.clear();
+        allocations.clear();
+        tablePointers.clear();
+    }
 
     public static void addClass(StructExt c) {
         classes.add(c);
         c.setTvfp(dataSize);
-        /* change dataSize here!!!*/
-        for(Obj m : c.getMembers()) {
-            if(m.getKind() != Obj.Meth) continue;
-            /* name + -1 + adr */
-            dataSize += m.getName().length() + 2;
-        }
-        /* -2 */
-        dataSize++;
+        /* slot + -1 + adr for every method, -2 at the end, written by ClassTables */
+        dataSize += 3 * c.getVirtualTable().size() + 1;
     }
 
     public static void addInitializer(Obj init) {
         staticInitList.add(init);
+        methods.add(init);
+    }
+
+    public static void addMethod(Obj method) {
+        methods.add(method);
+    }
+
+    public static ArrayList<StructExt> getClasses() {
+        return classes;
+    }
+
+    public static ArrayList<Obj> getInitializers() {
+        return staticInitList;
+    }
+
+    public static ArrayList<Obj> getMethods() {
+        return methods;
+    }
+
+    public static ArrayList<Integer> getRelocations() {
+        return relocations;
+    }
+
+    /* before the new_ or newarray is put */
+    public static void addAllocation(Struct type) {
+        allocations.put(pc, type);
+    }
+
+    public static Map<Integer, Struct> getAllocations() {
+        return allocations;
+    }
+
+    /* before the const is put */
+    public static void addTablePointer(StructExt c) {
+        tablePointers.put(pc, c);
+    }
+
+    public static Map<Integer, StructExt> getTablePointers() {
+        return tablePointers;
     }
 
     public static void load (Obj o) {
@@ -66,62 +125,10 @@ public class CodeExt extends Code {
         }
     }
 
-    public static void init() {
-        /* init chr */
-        Obj chr = TabExt.find("chr");
-        chr.setAdr(pc);
-        put(enter);
-        put(1);
-        put(1);
-        put(load_n);
-        put(exit);
-        put(return_);
-
-        /* init ord */
-        Obj ord = TabExt.find("ord");
-        ord.setAdr(pc);
-        put(enter);
-        put(1);
-        put(1);
-        put(load_n);
-        put(exit);
-        put(return_);
-
-        /* init len */
-        Obj len = TabExt.find("len");
-        len.setAdr(pc);
-        put(enter);
-        put(1);
-        put(1);
-        put(load_n);
-        put(arraylength);
-        put(exit);
-        put(return_);
-    }
-
-    /* write tvfs etc. */
-    public static void initClasses() {
-       for(StructExt cl : classes) {
-           int writePtr = cl.getTvfp();
-           for(Obj m : cl.getMembers()) {
-               if(m.getKind() != Obj.Meth) continue;
-
-               for(char c : m.getName().toCharArray()) {
-                    loadConst(c);
-                    put(putstatic);
-                    put2(writePtr++);
-               }
-               loadConst(-1);
-               put(putstatic);
-               put2(writePtr++);
-               loadConst(m.getAdr());
-               put(putstatic);
-               put2(writePtr++);
-           }
-           loadConst(-2);
-           put(putstatic);
-           put2(writePtr);
-       }
+    public static void putVirtualCall(int slot) {
+        put(invokevirtual);
+        put4(slot);
+        put4(-1);
     }
 
     public static void initScopes() {
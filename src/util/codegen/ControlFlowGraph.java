@@ -0,0 +1,177 @@
+package util.codegen;
+
+import rs.etf.pp1.symboltable.concepts.Obj;
+import util.semantics.StructExt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* basic blocks of one method, passes work on these and emit() turns them back into a flat list */
+public class ControlFlowGraph {
+    private final Obj method;
+    /* original order, the first block is the entry */
+    private final ArrayList<BasicBlock> blocks = new ArrayList<>();
+
+    public ControlFlowGraph(Obj method) {
+        this.method = method;
+    }
+
+    public Obj getMethod() {
+        return method;
+    }
+
+    public ArrayList<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    /* split the decoded code into methods and blocks, every reference to a leader moves to its block label */
+    public static ArrayList<ControlFlowGraph> build(InstructionList code) {
+        List<Instruction> instructions = code.getInstructions();
+        Map<Instruction, Obj> starts = new IdentityHashMap<>();
+        for(Map.Entry<Obj, Instruction> entry : code.getEntries().entrySet()) {
+            starts.put(InstructionList.resolve(entry.getValue()), entry.getKey());
+        }
+
+        Set<Instruction> leaders = Collections.newSetFromMap(new IdentityHashMap<>());
+        leaders.addAll(starts.keySet());
+        leaders.add(InstructionList.resolve(code.getMain()));
+        for(int i = 0; i < instructions.size(); i++) {
+            Instruction ins = instructions.get(i);
+            if(ins.getTarget() != null) leaders.add(ins.getTarget());
+            if((ins.isJump() || ins.endsFlow()) && i + 1 < instructions.size()) leaders.add(instructions.get(i + 1));
+        }
+
+        ArrayList<ControlFlowGraph> graphs = new ArrayList<>();
+        Map<Instruction, BasicBlock> blockAt = new IdentityHashMap<>();
+        ControlFlowGraph graph = null;
+        BasicBlock block = null;
+        for(Instruction ins : instructions) {
+            if(graph == null || starts.containsKey(ins)) {
+                graph = new ControlFlowGraph(starts.get(ins));
+                graphs.add(graph);
+                block = null;
+            }
+            if(block == null || leaders.contains(ins)) {
+                BasicBlock next = new BasicBlock();
+                if(block != null && !block.getLast().endsFlow()) block.setFallthrough(next);
+                block = next;
+                graph.blocks.add(block);
+                blockAt.put(ins, block);
+            }
+            block.getInstructions().add(ins);
+        }
+
+        for(ControlFlowGraph g : graphs) {
+            for(BasicBlock b : g.blocks) {
+                if(b.getLast().isJump()) b.setBranch(blockAt.get(b.getLast().getTarget()));
+                for(Instruction ins : b.getInstructions()) {
+                    if(ins.getTarget() != null) ins.setTarget(blockAt.get(ins.getTarget()).getLabel());
+                }
+            }
+            g.computePredecessors();
+        }
+        for(Map.Entry<Obj, Instruction> entry : code.getEntries().entrySet()) {
+            entry.setValue(blockAt.get(InstructionList.resolve(entry.getValue())).getLabel());
+        }
+        code.setMain(blockAt.get(InstructionList.resolve(code.getMain())).getLabel());
+        return graphs;
+    }
+
+    /* methods behind every slot of every class, null where the method has no graph */
+    public static Map<Integer, ArrayList<ControlFlowGraph>> slotTargets(List<ControlFlowGraph> graphs) {
+        Map<Integer, ControlFlowGraph> byAdr = new HashMap<>();
+        for(ControlFlowGraph graph : graphs) {
+            if(graph.getMethod() != null) byAdr.put(graph.getMethod().getAdr(), graph);
+        }
+
+        /* inherited copies still hold the address of the original */
+        Map<Integer, ArrayList<ControlFlowGraph>> slots = new HashMap<>();
+        for(StructExt cl : CodeExt.getClasses()) {
+            for(Map.Entry<String, Integer> slot : cl.getVirtualTable().entrySet()) {
+                ControlFlowGraph target = byAdr.get(cl.getSlotMethod(slot.getValue()).getAdr());
+                slots.computeIfAbsent(slot.getValue(), k -> new ArrayList<>()).add(target);
+            }
+        }
+        return slots;
+    }
+
+    /* after blocks were split or added */
+    public void computePredecessors() {
+        for(BasicBlock b : blocks) b.getPredecessors().clear();
+        for(BasicBlock b : blocks) {
+            for(BasicBlock successor : b.getSuccessors()) successor.getPredecessors().add(b);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for(BasicBlock b : blocks) size += b.size();
+        return size;
+    }
+
+    /* chain blocks along fallthroughs and jumps to blocks nothing else reaches, so the jmp can go */
+    public ArrayList<BasicBlock> layout() {
+        ArrayList<BasicBlock> order = new ArrayList<>();
+        Set<BasicBlock> placed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(BasicBlock start : blocks) {
+            for(BasicBlock b = start; b != null && placed.add(b); b = chainNext(b)) {
+                order.add(b);
+            }
+        }
+        return order;
+    }
+
+    private static BasicBlock chainNext(BasicBlock b) {
+        if(b.getFallthrough() != null) return b.getFallthrough();
+        Instruction last = b.getLast();
+        if(last != null && last.getOpcode() == CodeExt.jmp && b.getBranch().getPredecessors().size() == 1) {
+            return b.getBranch();
+        }
+        return null;
+    }
+
+    /* write the blocks back into the flat list, a fallthrough that is not laid out next gets a jmp */
+    public static void emit(InstructionList code, List<ControlFlowGraph> graphs) {
+        ArrayList<Instruction> linear = new ArrayList<>();
+        for(ControlFlowGraph graph : graphs) {
+            ArrayList<BasicBlock> order = graph.layout();
+            for(int i = 0; i < order.size(); i++) {
+                BasicBlock b = order.get(i);
+                linear.add(b.getLabel());
+                linear.addAll(b.getInstructions());
+                BasicBlock next = i + 1 < order.size()? order.get(i + 1) : null;
+                if(b.getFallthrough() != null && b.getFallthrough() != next) {
+                    linear.add(Instruction.jump(CodeExt.jmp, b.getFallthrough().getLabel()));
+                }
+            }
+        }
+
+        /* labels have no size, whatever pointed to one points to the instruction after it */
+        Instruction following = null;
+        for(int i = linear.size() - 1; i >= 0; i--) {
+            Instruction ins = linear.get(i);
+            if(ins.isLabel()) ins.setReplacedBy(following);
+            else following = ins;
+        }
+        linear.removeIf(Instruction::isLabel);
+
+        code.getInstructions().clear();
+        code.getInstructions().addAll(linear);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(method != null? method.getName() : "<code>").append('\n');
+        for(BasicBlock b : blocks) sb.append(b);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/* drops blocks nothing can reach and methods that are never called */
+public class DeadCode {
+    private final Logger logger = Logger.getLogger(DeadCode.class);
+    private int removedBlocks = 0;
+    private int removedBytes = 0;
+
+    public void run(InstructionList code, ArrayList<ControlFlowGraph> graphs) {
+        for(ControlFlowGraph graph : graphs) {
+            removeUnreachableBlocks(graph);
+        }
+
+        Set<ControlFlowGraph> live = liveMethods(code, graphs);
+        int removedMethods = 0;
+        for(ControlFlowGraph graph : graphs) {
+            if(live.contains(graph)) continue;
+            removedMethods++;
+            for(BasicBlock b : graph.getBlocks()) removedBytes += b.size();
+            if(graph.getMethod() != null) code.getEntries().remove(graph.getMethod());
+        }
+        graphs.retainAll(live);
+
+        logger.info("Dead code removed " + removedMethods + " methods, " + removedBlocks + " blocks, "
+                + removedBytes + " bytes");
+    }
+
+    private void removeUnreachableBlocks(ControlFlowGraph graph) {
+        Set<BasicBlock> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        reached.add(graph.getEntry());
+        work.add(graph.getEntry());
+        while(!work.isEmpty()) {
+            for(BasicBlock successor : work.poll().getSuccessors()) {
+                if(reached.add(successor)) work.add(successor);
+            }
+        }
+
+        for(BasicBlock b : graph.getBlocks()) {
+            if(reached.contains(b)) continue;
+            removedBlocks++;
+            removedBytes += b.size();
+        }
+        graph.getBlocks().retainAll(reached);
+        for(BasicBlock b : graph.getBlocks()) {
+            b.getPredecessors().retainAll(reached);
+        }
+    }
+
+    /* from main over calls, static initializers included, invokevirtual reaches every method in its slot */
+    private static Set<ControlFlowGraph> liveMethods(InstructionList code, ArrayList<ControlFlowGraph> graphs) {
+        Map<Instruction, ControlFlowGraph> byEntry = new IdentityHashMap<>();
+        for(ControlFlowGraph graph : graphs) byEntry.put(graph.getEntry().getLabel(), graph);
+
+        Map<Integer, ArrayList<ControlFlowGraph>> slots = ControlFlowGraph.slotTargets(graphs);
+
+        Set<ControlFlowGraph> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<ControlFlowGraph> work = new ArrayDeque<>();
+        ControlFlowGraph root = byEntry.get(code.getMain());
+        if(root != null && live.add(root)) work.add(root);
+
+        while(!work.isEmpty()) {
+            for(BasicBlock b : work.poll().getBlocks()) {
+                for(Instruction ins : b.getInstructions()) {
+                    ArrayList<ControlFlowGraph> callees = new ArrayList<>();
+                    if(ins.getOpcode() == CodeExt.call) {
+                        callees.add(byEntry.get(ins.getTarget()));
+                    } else if(ins.getOpcode() == CodeExt.invokevirtual) {
+                        callees.addAll(slots.getOrDefault(ins.getOperand(0), new ArrayList<>()));
+                    }
+                    for(ControlFlowGraph callee : callees) {
+                        if(callee != null && live.add(callee)) work.add(callee);
+                    }
+                }
+            }
+        }
+        return live;
+    }
+}
@@ -0,0 +1,537 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+import rs.etf.pp1.symboltable.concepts.Obj;
+import rs.etf.pp1.symboltable.concepts.Struct;
+import util.semantics.StructExt;
+import util.semantics.TabExt;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* what the collector of util.runtime needs to know about the encoded code: the reference globals, the header of
+ * everything new_ and newarray allocate and, at every allocation and every call, which locals of the method and
+ * which of its expression stack slots hold references. found by a type inference over each live method, a method
+ * it cannot follow leaves the maps incomplete and Main fails the compile.
+ * appended after the code, big endian: "GC", the reference globals (count, addresses), the object layouts (count,
+ * then words, count and offsets of the reference fields), the allocation sites (count, then address, header and
+ * frame map) and the calls (count, then return address and frame map). a frame map is the expression stack depth
+ * of the method, the reference slots in it (count, positions from the bottom) and the reference locals (count,
+ * indices). headers are -1 for int arrays, -2 for char arrays, -3 for reference arrays and -4 - layout for objects */
+public class GcMaps {
+    public static final int INT_ARRAY = -1, CHAR_ARRAY = -2, REF_ARRAY = -3, OBJECT = -4;
+
+    private final Logger logger = Logger.getLogger(GcMaps.class);
+    private final Obj program;
+    private final ArrayList<Integer> globals = new ArrayList<>();
+    private final Map<Integer, Struct> globalTypes = new HashMap<>();
+    private final ArrayList<int[]> layouts = new ArrayList<>();
+    private final Map<List<Integer>, Integer> layoutIndex = new HashMap<>();
+    /* address, header and frame map */
+    private final ArrayList<int[]> sites = new ArrayList<>();
+    /* return address and frame map */
+    private final ArrayList<int[]> calls = new ArrayList<>();
+    private boolean complete = false;
+
+    public GcMaps(Obj program) {
+        this.program = program;
+    }
+
+    /* after InstructionList.encode, the addresses are final */
+    public void run(InstructionList code) {
+        ArrayList<Instruction> instructions = code.getInstructions();
+        Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for(int i = 0; i < instructions.size(); i++) index.put(instructions.get(i), i);
+
+        for(Obj global : program.getLocalSymbols()) {
+            if(global.getKind() != Obj.Var) continue;
+            globalTypes.put(global.getAdr(), global.getType());
+            if(global.getType().isRefType()) globals.add(global.getAdr());
+        }
+        try {
+            /* inherited methods share an entry with the parent's, so does a method under more than one Obj */
+            Map<Instruction, List<Obj>> methods = new IdentityHashMap<>();
+            for(Map.Entry<Obj, Instruction> entry : code.getEntries().entrySet()) {
+                Instruction enter = enterAt(instructions, index, InstructionList.resolve(entry.getValue()));
+                methods.computeIfAbsent(enter, k -> new ArrayList<>()).add(entry.getKey());
+            }
+            Map<Instruction, Obj> callees = new IdentityHashMap<>();
+            for(Map.Entry<Instruction, List<Obj>> method : methods.entrySet()) {
+                callees.put(method.getKey(), method.getValue().get(0));
+            }
+            for(Map.Entry<Instruction, List<Obj>> method : methods.entrySet()) {
+                new Inference(instructions, index, callees, code).run(method.getKey(), method.getValue());
+            }
+            complete = true;
+            logger.info("GC maps written for " + globals.size() + " globals, " + sites.size() + " allocations, "
+                    + calls.size() + " calls and " + layouts.size() + " object layouts");
+        } catch(NoMaps e) {
+            logger.error("No GC maps, " + e.getMessage());
+        }
+    }
+
+    /* false when the inference gave up */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /* the section after what Code.write put out, nothing if the maps are not complete */
+    public void write(OutputStream stream) throws IOException {
+        if(!complete) return;
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write('G');
+        out.write('C');
+        out.writeInt(globals.size());
+        for(int adr : globals) out.writeInt(adr);
+        out.writeInt(layouts.size());
+        for(int[] layout : layouts) {
+            out.writeInt(layout[0]);
+            out.writeInt(layout.length - 1);
+            for(int i = 1; i < layout.length; i++) out.writeInt(layout[i]);
+        }
+        out.writeInt(sites.size());
+        for(int[] site : sites) for(int word : site) out.writeInt(word);
+        out.writeInt(calls.size());
+        for(int[] call : calls) for(int word : call) out.writeInt(word);
+        out.flush();
+    }
+
+    /* the enter at or after ins, past the labels of the entry block */
+    private static Instruction enterAt(ArrayList<Instruction> instructions, Map<Instruction, Integer> index,
+                                       Instruction ins) throws NoMaps {
+        Integer i = index.get(ins);
+        if(i == null) throw new NoMaps("a method entry is not in the code");
+        while(i < instructions.size() && instructions.get(i).isLabel()) i++;
+        if(i == instructions.size() || instructions.get(i).getOpcode() != CodeExt.enter) {
+            throw new NoMaps("a method does not start with enter");
+        }
+        return instructions.get(i);
+    }
+
+    /* the object layout of a class, words and the offsets of its reference fields, shared by equal layouts */
+    private int layout(Struct type, int words) {
+        List<Integer> layout = new ArrayList<>();
+        layout.add(words);
+        int[] offsets = type.getMembers().stream()
+                .filter(f -> f.getKind() == Obj.Fld && f.getType().isRefType()).mapToInt(Obj::getAdr).sorted().toArray();
+        for(int offset : offsets) layout.add(offset);
+        return layoutIndex.computeIfAbsent(layout, k -> {
+            layouts.add(k.stream().mapToInt(Integer::intValue).toArray());
+            return layouts.size() - 1;
+        });
+    }
+
+    /* what a local or an expression stack slot holds. ZERO is what a local starts with and null, it goes with
+     * anything, CONFLICT is an int on one path and a reference on another */
+    private static final class Value {
+        static final int ZERO = 0, INT = 1, REF = 2, TABLE = 3, CONFLICT = 4;
+        static final Value zero = new Value(ZERO, null), integer = new Value(INT, null), conflict = new Value(CONFLICT, null);
+
+        final int kind;
+        /* class or array type of a REF, class of the table a TABLE points to, null if not known */
+        final Struct type;
+
+        Value(int kind, Struct type) {
+            this.kind = kind;
+            this.type = type;
+        }
+
+        static Value of(Struct type) {
+            return type.isRefType()? new Value(REF, type) : integer;
+        }
+
+        boolean isRef() {
+            return kind == REF;
+        }
+
+        Value merge(Value other) {
+            if(kind == ZERO || same(other)) return other;
+            if(other.kind == ZERO) return this;
+            if(kind != other.kind || kind == CONFLICT) return conflict;
+            return new Value(kind, common(type, other.type));
+        }
+
+        boolean same(Value other) {
+            return kind == other.kind && sameType(type, other.type);
+        }
+
+        static boolean sameType(Struct s, Struct t) {
+            if(s == t) return true;
+            return s != null && t != null && s.getKind() == Struct.Array && t.getKind() == Struct.Array
+                    && sameType(s.getElemType(), t.getElemType());
+        }
+
+        /* the deepest common ancestor of two classes, null for unrelated classes and different arrays */
+        static Struct common(Struct s, Struct t) {
+            if(sameType(s, t)) return s;
+            if(!(s instanceof StructExt) || !(t instanceof StructExt) || s.getKind() != Struct.Class
+                    || t.getKind() != Struct.Class) return null;
+            StructExt[] a = ((StructExt) s).getAncestors(), b = ((StructExt) t).getAncestors();
+            for(int i = Math.min(a.length, b.length) - 1; i >= 0; i--) {
+                if(a[i] == b[i]) return a[i];
+            }
+            return null;
+        }
+    }
+
+    /* locals and expression stack before an instruction */
+    private static final class Frame {
+        /* as deep as the expression stack of the MJVM */
+        static final int STACK_SIZE = 30;
+
+        final Value[] locals;
+        final Value[] stack;
+        int depth;
+
+        Frame(int locals) {
+            this.locals = new Value[locals];
+            Arrays.fill(this.locals, Value.zero);
+            stack = new Value[STACK_SIZE];
+        }
+
+        Frame(Frame other) {
+            locals = other.locals.clone();
+            stack = other.stack.clone();
+            depth = other.depth;
+        }
+
+        void push(Value v) throws NoMaps {
+            if(depth == stack.length) throw new NoMaps("the expression stack overflows");
+            stack[depth++] = v;
+        }
+
+        Value pop() throws NoMaps {
+            if(depth == 0) throw new NoMaps("the expression stack runs empty");
+            return stack[--depth];
+        }
+
+        /* false if nothing changed */
+        boolean merge(Frame other) throws NoMaps {
+            if(depth != other.depth) throw new NoMaps("paths meet with different stack depths");
+            boolean changed = false;
+            for(int i = 0; i < locals.length; i++) {
+                Value v = locals[i].merge(other.locals[i]);
+                if(!v.same(locals[i])) changed = true;
+                locals[i] = v;
+            }
+            for(int i = 0; i < depth; i++) {
+                Value v = stack[i].merge(other.stack[i]);
+                if(!v.same(stack[i])) changed = true;
+                stack[i] = v;
+            }
+            return changed;
+        }
+    }
+
+    /* one method from its enter to every return_ and trap */
+    private class Inference {
+        private final ArrayList<Instruction> instructions;
+        private final Map<Instruction, Integer> index;
+        private final Map<Instruction, Obj> callees;
+        private final InstructionList code;
+        private final Map<Integer, Frame> before = new HashMap<>();
+
+        Inference(ArrayList<Instruction> instructions, Map<Instruction, Integer> index, Map<Instruction, Obj> callees,
+                  InstructionList code) {
+            this.instructions = instructions;
+            this.index = index;
+            this.callees = callees;
+            this.code = code;
+        }
+
+        void run(Instruction enter, List<Obj> objs) throws NoMaps {
+            int params = enter.getOperand(0);
+            Frame start = new Frame(enter.getOperand(1));
+            if(params > start.locals.length) throw new NoMaps("more parameters than locals");
+            for(int i = 0; i < params; i++) start.locals[i] = null;
+            for(Obj method : objs) {
+                for(Obj local : method.getLocalSymbols()) {
+                    int adr = local.getAdr();
+                    if(local.getKind() != Obj.Var || adr < 0 || adr >= params) continue;
+                    Value v = Value.of(local.getType());
+                    start.locals[adr] = start.locals[adr] == null? v : start.locals[adr].merge(v);
+                }
+            }
+            for(int i = 0; i < params; i++) if(start.locals[i] == null) start.locals[i] = Value.integer;
+
+            ArrayDeque<Integer> work = new ArrayDeque<>();
+            int first = index.get(enter) + 1;
+            before.put(first, start);
+            work.add(first);
+            while(!work.isEmpty()) {
+                int i = work.poll();
+                Frame f = new Frame(before.get(i));
+                for(int successor : transfer(i, f)) {
+                    Frame old = before.get(successor);
+                    if(old == null) before.put(successor, new Frame(f));
+                    else if(!old.merge(f)) continue;
+                    work.add(successor);
+                }
+            }
+
+            for(Map.Entry<Integer, Frame> point : before.entrySet()) {
+                Instruction ins = instructions.get(point.getKey());
+                Frame f = point.getValue();
+                switch(ins.getOpcode()) {
+                    case CodeExt.new_: case CodeExt.newarray:
+                        sites.add(concat(new int[] { ins.getAdr(), header(ins) }, map(f, f.depth)));
+                        break;
+                    case CodeExt.call:
+                        calls.add(concat(new int[] { ins.getAdr() + ins.size() }, map(f, f.depth - params(target(ins)))));
+                        break;
+                    case CodeExt.invokevirtual:
+                        calls.add(concat(new int[] { ins.getAdr() + ins.size() },
+                                map(f, f.depth - 1 - params(virtualTarget(ins, f.stack[f.depth - 1])))));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /* depth, reference slots below it and reference locals. a CONFLICT local is never read again, loading
+         * one gives up, so it is left out */
+        private int[] map(Frame f, int depth) throws NoMaps {
+            if(depth < 0) throw new NoMaps("a call finds fewer arguments than it takes");
+            ArrayList<Integer> words = new ArrayList<>();
+            words.add(depth);
+            int count = words.size();
+            words.add(0);
+            for(int i = 0; i < depth; i++) {
+                if(f.stack[i].kind == Value.CONFLICT) throw new NoMaps("a stack slot is an int or a reference");
+                if(f.stack[i].isRef()) words.add(i);
+            }
+            words.set(count, words.size() - count - 1);
+            count = words.size();
+            words.add(0);
+            for(int i = 0; i < f.locals.length; i++) if(f.locals[i].isRef()) words.add(i);
+            words.set(count, words.size() - count - 1);
+            return words.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private int header(Instruction ins) throws NoMaps {
+            Struct type = ins.getAllocated();
+            if(type == null) throw new NoMaps("an allocation at " + ins.getAdr() + " has no type");
+            if(ins.getOpcode() == CodeExt.new_) return OBJECT - layout(type, (ins.getOperand(0) + 3) >> 2);
+            if(ins.getOperand(0) == 0) return CHAR_ARRAY;
+            return type.getElemType().isRefType()? REF_ARRAY : INT_ARRAY;
+        }
+
+        /* the enter a call goes to */
+        private Instruction target(Instruction call) throws NoMaps {
+            Instruction enter = enterAt(instructions, index, call.getTarget());
+            if(!callees.containsKey(enter)) throw new NoMaps("a call goes to an unknown method");
+            return enter;
+        }
+
+        private Instruction virtualTarget(Instruction ins, Value table) throws NoMaps {
+            if(table.kind != Value.TABLE || !(table.type instanceof StructExt)) {
+                throw new NoMaps("the class of a virtual call at " + ins.getAdr() + " is not known");
+            }
+            Obj method = ((StructExt) table.type).getSlotMethod(ins.getOperand(0));
+            Instruction entry = method == null? null : code.getEntries().get(method);
+            if(entry == null) throw new NoMaps("a virtual call goes to an unknown method");
+            return enterAt(instructions, index, InstructionList.resolve(entry));
+        }
+
+        private int params(Instruction enter) {
+            return enter.getOperand(0);
+        }
+
+        private Value returned(Instruction enter) {
+            Struct type = callees.get(enter).getType();
+            return type == TabExt.noType? null : Value.of(type);
+        }
+
+        private Value local(Frame f, Instruction ins) throws NoMaps {
+            int local = ins.getLocal();
+            if(local < 0 || local >= f.locals.length) throw new NoMaps("a local outside the frame");
+            return f.locals[local];
+        }
+
+        /* f from before the instruction at i to after it, the successors it goes to */
+        private int[] transfer(int i, Frame f) throws NoMaps {
+            Instruction ins = instructions.get(i);
+            int next = i + 1;
+            if(ins.isLabel()) return new int[] { next };
+            if(ins.isLocalLoad()) {
+                Value v = local(f, ins);
+                if(v.kind == Value.CONFLICT) throw new NoMaps("local " + ins.getLocal() + " is an int or a reference");
+                f.push(v);
+                return new int[] { next };
+            }
+            if(ins.isLocalStore()) {
+                local(f, ins);
+                f.locals[ins.getLocal()] = f.pop();
+                return new int[] { next };
+            }
+            Integer constant = ins.getConstant();
+            if(constant != null || ins.getOpcode() == CodeExt.const_) {
+                f.push(constant != null && constant == 0? Value.zero : Value.integer);
+                return new int[] { next };
+            }
+            if(ins.isJump()) {
+                if(ins.isConditionalJump()) {
+                    f.pop();
+                    f.pop();
+                }
+                Integer target = index.get(ins.getTarget());
+                if(target == null) throw new NoMaps("a jump leaves the code");
+                return ins.isConditionalJump()? new int[] { next, target } : new int[] { target };
+            }
+
+            Value v, receiver;
+            Instruction callee;
+            switch(ins.getOpcode()) {
+                case CodeExt.getstatic:
+                    f.push(global(ins.getOperand(0)));
+                    break;
+                case CodeExt.putstatic:
+                    f.pop();
+                    break;
+                case CodeExt.getfield:
+                    f.push(field(f.pop(), ins.getOperand(0)));
+                    break;
+                case CodeExt.putfield:
+                    f.pop();
+                    f.pop();
+                    break;
+                case CodeExt.add: case CodeExt.sub: case CodeExt.mul: case CodeExt.div: case CodeExt.rem:
+                case CodeExt.shl: case CodeExt.shr:
+                    f.pop();
+                    f.pop();
+                    f.push(Value.integer);
+                    break;
+                case CodeExt.neg: case CodeExt.arraylength:
+                    f.pop();
+                    f.push(Value.integer);
+                    break;
+                case CodeExt.inc:
+                    if(local(f, ins).kind == Value.CONFLICT) throw new NoMaps("an inc of an int or a reference");
+                    f.locals[ins.getLocal()] = Value.integer;
+                    break;
+                case CodeExt.new_:
+                    if(ins.getAllocated() == null) throw new NoMaps("an allocation at " + ins.getAdr() + " has no type");
+                    f.push(new Value(Value.REF, ins.getAllocated()));
+                    break;
+                case CodeExt.newarray:
+                    if(ins.getAllocated() == null) throw new NoMaps("an allocation at " + ins.getAdr() + " has no type");
+                    f.pop();
+                    f.push(new Value(Value.REF, ins.getAllocated()));
+                    break;
+                case CodeExt.aload:
+                    f.pop();
+                    v = f.pop();
+                    if(v.kind == Value.ZERO) f.push(Value.zero);
+                    else if(v.isRef() && v.type != null && v.type.getKind() == Struct.Array) f.push(Value.of(v.type.getElemType()));
+                    else f.push(Value.conflict);
+                    break;
+                case CodeExt.baload:
+                    f.pop();
+                    f.pop();
+                    f.push(Value.integer);
+                    break;
+                case CodeExt.astore: case CodeExt.bastore:
+                    f.pop();
+                    f.pop();
+                    f.pop();
+                    break;
+                case CodeExt.pop:
+                    f.pop();
+                    break;
+                case CodeExt.dup:
+                    v = f.pop();
+                    f.push(v);
+                    f.push(v);
+                    break;
+                case CodeExt.dup2:
+                    v = f.pop();
+                    receiver = f.pop();
+                    f.push(receiver);
+                    f.push(v);
+                    f.push(receiver);
+                    f.push(v);
+                    break;
+                case CodeExt.dup_x1:
+                    v = f.pop();
+                    receiver = f.pop();
+                    f.push(v);
+                    f.push(receiver);
+                    f.push(v);
+                    break;
+                case CodeExt.dup_x2:
+                    v = f.pop();
+                    receiver = f.pop();
+                    Value third = f.pop();
+                    f.push(v);
+                    f.push(third);
+                    f.push(receiver);
+                    f.push(v);
+                    break;
+                case CodeExt.call:
+                    callee = target(ins);
+                    for(int p = params(callee); p > 0; p--) f.pop();
+                    if((v = returned(callee)) != null) f.push(v);
+                    break;
+                case CodeExt.invokevirtual:
+                    callee = virtualTarget(ins, f.pop());
+                    for(int p = params(callee); p > 0; p--) f.pop();
+                    if((v = returned(callee)) != null) f.push(v);
+                    break;
+                case CodeExt.exit:
+                    break;
+                case CodeExt.read: case CodeExt.bread:
+                    f.push(Value.integer);
+                    break;
+                case CodeExt.print: case CodeExt.bprint:
+                    f.pop();
+                    f.pop();
+                    break;
+                case CodeExt.return_: case CodeExt.trap:
+                    return new int[0];
+                default:
+                    throw new NoMaps("opcode " + ins.getOpcode() + " at " + ins.getAdr() + " inside a method");
+            }
+            return new int[] { next };
+        }
+
+        /* globals by address, the class tables are ints */
+        private Value global(int adr) {
+            Struct type = globalTypes.get(adr);
+            return type == null? Value.integer : Value.of(type);
+        }
+
+        /* field 0 of a root class is the address of its table */
+        private Value field(Value receiver, int adr) throws NoMaps {
+            if(receiver.kind == Value.ZERO) return Value.zero;
+            if(!receiver.isRef() || receiver.type == null || receiver.type.getKind() != Struct.Class) return Value.conflict;
+            for(Obj field : receiver.type.getMembers()) {
+                if(field.getKind() != Obj.Fld || field.getAdr() != adr) continue;
+                return adr == 0 && field.getName().equals("$tvfp$")? new Value(Value.TABLE, receiver.type) : Value.of(field.getType());
+            }
+            throw new NoMaps("no field at offset " + adr + " in a class");
+        }
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static class NoMaps extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NoMaps(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* copies the body of small methods into their callers, virtual calls with one possible target become calls first */
+public class Inliner {
+    /* bytes of callee code, not counting enter */
+    public static final int DEFAULT_BUDGET = 32;
+
+    private final Logger logger = Logger.getLogger(Inliner.class);
+    private final int budget;
+    private int devirtualized = 0;
+    private int inlined = 0;
+
+    public Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    public void run(InstructionList code, ArrayList<ControlFlowGraph> graphs) {
+        devirtualize(graphs);
+
+        Map<Instruction, ControlFlowGraph> byEntry = new IdentityHashMap<>();
+        for(ControlFlowGraph graph : graphs) byEntry.put(graph.getEntry().getLabel(), graph);
+        /* a caller whose calls were all inlined is a leaf now and may be inlined in the next round */
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(ControlFlowGraph caller : graphs) {
+                changed |= inlineCalls(caller, byEntry);
+            }
+        }
+
+        logger.info("Inliner devirtualized " + devirtualized + " calls, inlined " + inlined + " calls");
+    }
+
+    /* the slot index is shared by unrelated classes, so every class has to agree on the method */
+    private void devirtualize(ArrayList<ControlFlowGraph> graphs) {
+        Map<Integer, ArrayList<ControlFlowGraph>> slots = ControlFlowGraph.slotTargets(graphs);
+        for(ControlFlowGraph graph : graphs) {
+            for(BasicBlock b : graph.getBlocks()) {
+                List<Instruction> instructions = b.getInstructions();
+                for(int i = 0; i < instructions.size(); i++) {
+                    Instruction ins = instructions.get(i);
+                    if(ins.getOpcode() != CodeExt.invokevirtual) continue;
+                    HashSet<ControlFlowGraph> targets = new HashSet<>(slots.get(ins.getOperand(0)));
+                    if(targets.size() != 1 || targets.contains(null)) continue;
+
+                    /* getfield 0 before it still traps on a null receiver, only the table pointer goes */
+                    ControlFlowGraph target = targets.iterator().next();
+                    instructions.set(i, new Instruction(CodeExt.pop));
+                    instructions.add(i + 1, Instruction.jump(CodeExt.call, target.getEntry().getLabel()));
+                    devirtualized++;
+                }
+            }
+        }
+    }
+
+    private boolean inlineCalls(ControlFlowGraph caller, Map<Instruction, ControlFlowGraph> byEntry) {
+        boolean changed = false;
+        List<BasicBlock> blocks = caller.getBlocks();
+        for(int bi = 0; bi < blocks.size(); bi++) {
+            List<Instruction> instructions = blocks.get(bi).getInstructions();
+            for(int i = 0; i < instructions.size(); i++) {
+                Instruction ins = instructions.get(i);
+                if(ins.getOpcode() != CodeExt.call) continue;
+                ControlFlowGraph callee = byEntry.get(ins.getTarget());
+                if(callee == null || callee == caller || !isInlinable(callee)) continue;
+                if(!inline(caller, bi, i, callee)) continue;
+                inlined++;
+                changed = true;
+                /* the rest of the block moved to the continuation, found later in the list */
+                break;
+            }
+        }
+        return changed;
+    }
+
+    /* small and calls nothing */
+    private boolean isInlinable(ControlFlowGraph callee) {
+        if(!hasPlainFrame(callee)) return false;
+        if(callee.size() - callee.getEntry().getInstructions().get(0).size() > budget) return false;
+
+        for(BasicBlock b : callee.getBlocks()) {
+            for(Instruction ins : b.getInstructions()) {
+                if(ins.getOpcode() == CodeExt.call || ins.getOpcode() == CodeExt.invokevirtual) return false;
+            }
+        }
+        return true;
+    }
+
+    /* enter only at the start and every return is the exit; return_ pair */
+    static boolean hasPlainFrame(ControlFlowGraph callee) {
+        List<Instruction> entry = callee.getEntry().getInstructions();
+        if(entry.isEmpty() || entry.get(0).getOpcode() != CodeExt.enter) return false;
+
+        for(BasicBlock b : callee.getBlocks()) {
+            List<Instruction> instructions = b.getInstructions();
+            for(int i = 0; i < instructions.size(); i++) {
+                int op = instructions.get(i).getOpcode();
+                if(op == CodeExt.enter && (b != callee.getEntry() || i != 0)) return false;
+                if(op == CodeExt.return_ && (i == 0 || instructions.get(i - 1).getOpcode() != CodeExt.exit)) return false;
+                if(op == CodeExt.exit && (i + 1 == instructions.size() || instructions.get(i + 1).getOpcode() != CodeExt.return_)) return false;
+            }
+        }
+        return true;
+    }
+
+    /* replaces the call at i in block bi, false when the locals of both do not fit in one frame */
+    static boolean inline(ControlFlowGraph caller, int bi, int i, ControlFlowGraph callee) {
+        Instruction callerEnter = caller.getEntry().getInstructions().get(0);
+        int base = callerEnter.getOperand(1);
+        int calleeLocals = callee.getEntry().getInstructions().get(0).getOperand(1);
+        if(base + calleeLocals > Byte.MAX_VALUE) return false;
+
+        split(caller, bi, i, callee, base);
+        caller.getEntry().getInstructions().set(0,
+                new Instruction(CodeExt.enter, callerEnter.getOperand(0), base + calleeLocals));
+        return true;
+    }
+
+    /* split the block at the call, the arguments go into fresh locals above the caller's own */
+    private static void split(ControlFlowGraph caller, int bi, int i, ControlFlowGraph callee, int base) {
+        BasicBlock b = caller.getBlocks().get(bi);
+        BasicBlock continuation = new BasicBlock();
+        List<Instruction> tail = b.getInstructions().subList(i + 1, b.getInstructions().size());
+        continuation.getInstructions().addAll(tail);
+        tail.clear();
+        b.getInstructions().remove(i);
+        continuation.setFallthrough(b.getFallthrough());
+        continuation.setBranch(b.getBranch());
+        b.setBranch(null);
+
+        Instruction enter = callee.getEntry().getInstructions().get(0);
+        int params = enter.getOperand(0), locals = enter.getOperand(1);
+        for(int k = params - 1; k >= 0; k--) {
+            b.getInstructions().add(Instruction.store(base + k));
+        }
+        /* enter clears the frame, a loop around the inlined body would not */
+        for(int k = params; k < locals; k++) {
+            b.getInstructions().add(new Instruction(CodeExt.const_n));
+            b.getInstructions().add(Instruction.store(base + k));
+        }
+
+        Map<Instruction, BasicBlock> copies = new IdentityHashMap<>();
+        ArrayList<BasicBlock> inlinedBlocks = new ArrayList<>();
+        for(BasicBlock cb : callee.getBlocks()) {
+            BasicBlock copy = new BasicBlock();
+            copies.put(cb.getLabel(), copy);
+            inlinedBlocks.add(copy);
+        }
+        for(BasicBlock cb : callee.getBlocks()) {
+            BasicBlock copy = copies.get(cb.getLabel());
+            for(Instruction ins : cb.getInstructions()) {
+                if(ins == enter || ins.getOpcode() == CodeExt.exit) continue;
+                if(ins.getOpcode() == CodeExt.return_) {
+                    copy.getInstructions().add(Instruction.jump(CodeExt.jmp, continuation.getLabel()));
+                    copy.setBranch(continuation);
+                    continue;
+                }
+                copy.getInstructions().add(copy(ins, base, copies));
+            }
+            if(cb.getFallthrough() != null) copy.setFallthrough(copies.get(cb.getFallthrough().getLabel()));
+            if(cb.getBranch() != null) copy.setBranch(copies.get(cb.getBranch().getLabel()));
+        }
+
+        b.setFallthrough(copies.get(callee.getEntry().getLabel()));
+        inlinedBlocks.add(continuation);
+        caller.getBlocks().addAll(bi + 1, inlinedBlocks);
+        caller.computePredecessors();
+    }
+
+    private static Instruction copy(Instruction ins, int base, Map<Instruction, BasicBlock> copies) {
+        if(ins.isLocalLoad()) return Instruction.load(base + ins.getLocal());
+        if(ins.isLocalStore()) return Instruction.store(base + ins.getLocal());
+        if(ins.getOpcode() == CodeExt.inc) return new Instruction(CodeExt.inc, base + ins.getLocal(), ins.getOperand(1));
+
+        Instruction copy = new Instruction(ins.getOpcode(), ins.getOperands().clone());
+        copy.setAllocated(ins.getAllocated());
+        copy.setTable(ins.getTable());
+        Instruction target = ins.getTarget();
+        if(target != null) copy.setTarget(copies.containsKey(target)? copies.get(target).getLabel() : target);
+        return copy;
+    }
+}
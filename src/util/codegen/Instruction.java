@@ -0,0 +1,246 @@
+package util.codegen;
+
+import rs.etf.pp1.symboltable.concepts.Struct;
+import util.semantics.StructExt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* one decoded MJVM instruction, jumps and calls point to other instructions instead of offsets */
+public class Instruction {
+    /* zero sized marker at the start of a basic block, jumps inside the cfg point to these */
+    public static final int LABEL = -1;
+
+    private final int opcode;
+    private final int[] operands;
+    /* address in the code buffer, recomputed on every encode */
+    private int adr = -1;
+    /* destination of jmp, jcc and call, or the code address loaded by a relocated const_ */
+    private Instruction target;
+    /* set when a pass removes this instruction, references are forwarded to the replacement */
+    private Instruction replacedBy;
+    /* the class or array type a new_ or newarray allocates, for GcMaps */
+    private Struct allocated;
+    /* the class whose virtual table address a const_ stores into a new object, for ClassTables */
+    private StructExt table;
+
+    public Instruction(int opcode, int... operands) {
+        this.opcode = opcode;
+        this.operands = operands;
+    }
+
+    public static Instruction jump(int opcode, Instruction target) {
+        Instruction ins = new Instruction(opcode, 0);
+        ins.setTarget(target);
+        return ins;
+    }
+
+    /* shortest load/store of a local */
+    public static Instruction load(int local) {
+        return local <= 3? new Instruction(CodeExt.load_n + local) : new Instruction(CodeExt.load, local);
+    }
+
+    public static Instruction store(int local) {
+        return local <= 3? new Instruction(CodeExt.store_n + local) : new Instruction(CodeExt.store, local);
+    }
+
+    /* same forms as Code.loadConst */
+    public static Instruction constant(int value) {
+        if(value == -1) return new Instruction(CodeExt.const_m1);
+        return value >= 0 && value <= 5? new Instruction(CodeExt.const_n + value) : new Instruction(CodeExt.const_, value);
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getOperand(int i) {
+        return operands[i];
+    }
+
+    public int[] getOperands() {
+        return operands;
+    }
+
+    public int getAdr() {
+        return adr;
+    }
+
+    public void setAdr(int adr) {
+        this.adr = adr;
+    }
+
+    public Instruction getTarget() {
+        Instruction t = target;
+        while(t != null && t.replacedBy != null) t = t.replacedBy;
+        return t;
+    }
+
+    public void setTarget(Instruction target) {
+        this.target = target;
+    }
+
+    public Instruction getReplacedBy() {
+        return replacedBy;
+    }
+
+    public void setReplacedBy(Instruction replacedBy) {
+        this.replacedBy = replacedBy;
+    }
+
+    public Struct getAllocated() {
+        return allocated;
+    }
+
+    public void setAllocated(Struct allocated) {
+        this.allocated = allocated;
+    }
+
+    public StructExt getTable() {
+        return table;
+    }
+
+    public void setTable(StructExt table) {
+        this.table = table;
+    }
+
+    public boolean isConditionalJump() {
+        return opcode >= CodeExt.jcc && opcode < CodeExt.jcc + 6;
+    }
+
+    public boolean isJump() {
+        return opcode == CodeExt.jmp || isConditionalJump();
+    }
+
+    /* control never reaches the next instruction */
+    public boolean endsFlow() {
+        return opcode == CodeExt.jmp || opcode == CodeExt.return_ || opcode == CodeExt.trap;
+    }
+
+    public boolean isLocalLoad() {
+        return opcode == CodeExt.load || (opcode >= CodeExt.load_n && opcode <= CodeExt.load_3);
+    }
+
+    public boolean isLocalStore() {
+        return opcode == CodeExt.store || (opcode >= CodeExt.store_n && opcode <= CodeExt.store_3);
+    }
+
+    /* local variable index of load/store/inc */
+    public int getLocal() {
+        if(opcode == CodeExt.load || opcode == CodeExt.store || opcode == CodeExt.inc) return operands[0];
+        if(opcode >= CodeExt.load_n && opcode <= CodeExt.load_3) return opcode - CodeExt.load_n;
+        if(opcode >= CodeExt.store_n && opcode <= CodeExt.store_3) return opcode - CodeExt.store_n;
+        return -1;
+    }
+
+    /* value pushed by a constant load, null for anything else */
+    public Integer getConstant() {
+        if(opcode >= CodeExt.const_n && opcode <= CodeExt.const_5) return opcode - CodeExt.const_n;
+        if(opcode == CodeExt.const_m1) return -1;
+        if(opcode == CodeExt.const_ && target == null) return operands[0];
+        return null;
+    }
+
+    public boolean isLabel() {
+        return opcode == LABEL;
+    }
+
+    public int size() {
+        if(isLabel()) return 0;
+        int size = 1;
+        for(int i = 0; i < operands.length; i++) {
+            size += operandSize(opcode, i);
+        }
+        return size;
+    }
+
+    private static int operandSize(int opcode, int i) {
+        switch(opcode) {
+            case CodeExt.load: case CodeExt.store: case CodeExt.newarray: case CodeExt.trap:
+            case CodeExt.enter: case CodeExt.inc:
+                return 1;
+            case CodeExt.getstatic: case CodeExt.putstatic: case CodeExt.getfield: case CodeExt.putfield:
+            case CodeExt.new_: case CodeExt.jmp: case CodeExt.call:
+                return 2;
+            case CodeExt.const_: case CodeExt.invokevirtual:
+                return 4;
+            default:
+                /* jcc */
+                return 2;
+        }
+    }
+
+    private static int operandCount(int opcode) {
+        switch(opcode) {
+            case CodeExt.load: case CodeExt.store: case CodeExt.newarray: case CodeExt.trap:
+            case CodeExt.getstatic: case CodeExt.putstatic: case CodeExt.getfield: case CodeExt.putfield:
+            case CodeExt.new_: case CodeExt.jmp: case CodeExt.call: case CodeExt.const_:
+                return 1;
+            case CodeExt.enter: case CodeExt.inc:
+                return 2;
+            default:
+                return opcode >= CodeExt.jcc && opcode < CodeExt.jcc + 6? 1 : 0;
+        }
+    }
+
+    /* decode the instruction at adr, targets are resolved later by the caller */
+    public static Instruction decode(byte[] buf, int adr) {
+        int opcode = buf[adr];
+        int p = adr + 1;
+        int[] operands;
+        if(opcode == CodeExt.invokevirtual) {
+            /* name words up to and including -1 */
+            ArrayList<Integer> words = new ArrayList<>();
+            int word;
+            do {
+                word = get4(buf, p);
+                p += 4;
+                words.add(word);
+            } while(word != -1);
+            operands = words.stream().mapToInt(Integer::intValue).toArray();
+        } else {
+            operands = new int[operandCount(opcode)];
+            for(int i = 0; i < operands.length; i++) {
+                switch(operandSize(opcode, i)) {
+                    case 1: operands[i] = buf[p]; break;
+                    case 2: operands[i] = (short)((buf[p] << 8) + (buf[p + 1] & 0xFF)); break;
+                    default: operands[i] = get4(buf, p);
+                }
+                p += operandSize(opcode, i);
+            }
+        }
+
+        Instruction ins = new Instruction(opcode, operands);
+        ins.setAdr(adr);
+        return ins;
+    }
+
+    private static int get4(byte[] buf, int p) {
+        return ((buf[p] & 0xFF) << 24) | ((buf[p + 1] & 0xFF) << 16) | ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+    }
+
+    /* put into the code buffer at the current pc, expects adr of every target to be final */
+    public void write() {
+        if(isLabel()) return;
+        CodeExt.put(opcode);
+        for(int i = 0; i < operands.length; i++) {
+            int value = operands[i];
+            if(target != null && (opcode == CodeExt.const_)) {
+                value = getTarget().getAdr();
+            } else if(target != null) {
+                value = getTarget().getAdr() - adr;
+            }
+
+            switch(operandSize(opcode, i)) {
+                case 1: CodeExt.put(value); break;
+                case 2: CodeExt.put2(value); break;
+                default: CodeExt.put4(value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return adr + ": " + opcode + " " + Arrays.toString(operands);
+    }
+}
@@ -0,0 +1,101 @@
+package util.codegen;
+
+import rs.etf.pp1.symboltable.concepts.Obj;
+import rs.etf.pp1.symboltable.concepts.Struct;
+import util.semantics.StructExt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/* the code buffer decoded into instructions, written back by encode() once passes are done */
+public class InstructionList {
+    private final ArrayList<Instruction> instructions = new ArrayList<>();
+    /* method entries, keep these addresses valid after the code moves */
+    private final Map<Obj, Instruction> entries = new IdentityHashMap<>();
+    private Instruction main;
+
+    public ArrayList<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    public Map<Obj, Instruction> getEntries() {
+        return entries;
+    }
+
+    public Instruction getMain() {
+        return main;
+    }
+
+    public void setMain(Instruction main) {
+        this.main = main;
+    }
+
+    public int size() {
+        int size = 0;
+        for(Instruction ins : instructions) size += ins.size();
+        return size;
+    }
+
+    public static InstructionList decode() {
+        InstructionList list = new InstructionList();
+        Map<Integer, Instruction> at = new HashMap<>();
+        for(int adr = 0; adr < CodeExt.pc; ) {
+            Instruction ins = Instruction.decode(CodeExt.buf, adr);
+            at.put(adr, ins);
+            list.instructions.add(ins);
+            adr += ins.size();
+        }
+
+        for(Instruction ins : list.instructions) {
+            if(ins.isJump() || ins.getOpcode() == CodeExt.call) {
+                ins.setTarget(at.get(ins.getAdr() + ins.getOperand(0)));
+            }
+        }
+        for(int adr : CodeExt.getRelocations()) {
+            Instruction ins = at.get(adr);
+            ins.setTarget(at.get(ins.getOperand(0)));
+        }
+        for(Map.Entry<Integer, Struct> allocation : CodeExt.getAllocations().entrySet()) {
+            at.get(allocation.getKey()).setAllocated(allocation.getValue());
+        }
+        for(Map.Entry<Integer, StructExt> pointer : CodeExt.getTablePointers().entrySet()) {
+            at.get(pointer.getKey()).setTable(pointer.getValue());
+        }
+        for(Obj method : CodeExt.getMethods()) {
+            list.entries.put(method, at.get(method.getAdr()));
+        }
+        list.main = at.get(CodeExt.mainPc);
+        return list;
+    }
+
+    /* lay out the instructions again, rewrite the buffer and every address that pointed into it */
+    public void encode() {
+        int adr = 0;
+        for(Instruction ins : instructions) {
+            ins.setAdr(adr);
+            adr += ins.size();
+        }
+
+        CodeExt.pc = 0;
+        CodeExt.getRelocations().clear();
+        for(Instruction ins : instructions) {
+            if(ins.getOpcode() == CodeExt.const_ && ins.getTarget() != null) {
+                CodeExt.getRelocations().add(CodeExt.pc);
+            }
+            ins.write();
+        }
+
+        /* inherited methods share the Obj of the parent, so this covers them too */
+        for(Map.Entry<Obj, Instruction> entry : entries.entrySet()) {
+            entry.getKey().setAdr(resolve(entry.getValue()).getAdr());
+        }
+        CodeExt.mainPc = resolve(main).getAdr();
+    }
+
+    public static Instruction resolve(Instruction ins) {
+        while(ins.getReplacedBy() != null) ins = ins.getReplacedBy();
+        return ins;
+    }
+}
@@ -0,0 +1,218 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+import rs.etf.pp1.symboltable.concepts.Obj;
+import util.semantics.StructExt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* moves invariant loads and array lengths out of loops, the value is kept in a hidden local */
+public class LoopOptimizer {
+    private static class Loop {
+        BasicBlock header;
+        Set<BasicBlock> body = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private final Logger logger = Logger.getLogger(LoopOptimizer.class);
+    private final Set<Obj> classMethods = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int hoisted = 0;
+    private int optimizedLoops = 0;
+
+    public void run(InstructionList code, ArrayList<ControlFlowGraph> graphs) {
+        for(StructExt cl : CodeExt.getClasses()) {
+            classMethods.addAll(cl.getMembers());
+        }
+
+        for(ControlFlowGraph graph : graphs) {
+            ArrayList<Loop> loops = findLoops(graph);
+            for(Loop loop : loops) {
+                optimize(graph, loop, loops);
+            }
+        }
+
+        logger.info("Loop optimizer hoisted " + hoisted + " expressions out of " + optimizedLoops + " loops");
+    }
+
+    /* natural loops of the back edges, innermost first */
+    private static ArrayList<Loop> findLoops(ControlFlowGraph graph) {
+        List<BasicBlock> blocks = graph.getBlocks();
+        Map<BasicBlock, Integer> index = new IdentityHashMap<>();
+        for(int i = 0; i < blocks.size(); i++) index.put(blocks.get(i), i);
+
+        BitSet[] dom = new BitSet[blocks.size()];
+        for(int i = 0; i < blocks.size(); i++) {
+            dom[i] = new BitSet();
+            if(i == 0) dom[i].set(0);
+            else dom[i].set(0, blocks.size());
+        }
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i = 1; i < blocks.size(); i++) {
+                BitSet d = new BitSet();
+                d.set(0, blocks.size());
+                for(BasicBlock p : blocks.get(i).getPredecessors()) d.and(dom[index.get(p)]);
+                d.set(i);
+                if(!d.equals(dom[i])) {
+                    dom[i] = d;
+                    changed = true;
+                }
+            }
+        }
+
+        Map<BasicBlock, Loop> byHeader = new LinkedHashMap<>();
+        for(BasicBlock b : blocks) {
+            for(BasicBlock s : b.getSuccessors()) {
+                if(!dom[index.get(b)].get(index.get(s))) continue;
+                Loop loop = byHeader.computeIfAbsent(s, h -> new Loop());
+                loop.header = s;
+                loop.body.add(s);
+                ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+                if(loop.body.add(b)) work.add(b);
+                while(!work.isEmpty()) {
+                    for(BasicBlock p : work.poll().getPredecessors()) {
+                        if(loop.body.add(p)) work.add(p);
+                    }
+                }
+            }
+        }
+
+        ArrayList<Loop> loops = new ArrayList<>(byHeader.values());
+        loops.sort((a, b) -> a.body.size() - b.body.size());
+        return loops;
+    }
+
+    private void optimize(ControlFlowGraph graph, Loop loop, ArrayList<Loop> loops) {
+        Set<Integer> locals = new HashSet<>(), statics = new HashSet<>(), fields = new HashSet<>();
+        boolean calls = false;
+        for(BasicBlock b : loop.body) {
+            for(Instruction ins : b.getInstructions()) {
+                if(ins.isLocalStore() || ins.getOpcode() == CodeExt.inc) locals.add(ins.getLocal());
+                else if(ins.getOpcode() == CodeExt.putstatic) statics.add(ins.getOperand(0));
+                else if(ins.getOpcode() == CodeExt.putfield) fields.add(ins.getOperand(0));
+                else if(ins.getOpcode() == CodeExt.invokevirtual || ins.getOpcode() == CodeExt.call) calls = true;
+            }
+        }
+        /* this is checked by the virtual call, it stays valid while local 0 is never written */
+        boolean thisNonNull = classMethods.contains(graph.getMethod());
+        for(BasicBlock b : graph.getBlocks()) {
+            for(Instruction ins : b.getInstructions()) {
+                if((ins.isLocalStore() || ins.getOpcode() == CodeExt.inc) && ins.getLocal() == 0) thisNonNull = false;
+            }
+        }
+
+        Instruction enter = graph.getEntry().getInstructions().get(0);
+        Map<List<Object>, Integer> hiddenLocals = new HashMap<>();
+        ArrayList<Instruction> preheader = new ArrayList<>();
+        for(BasicBlock b : graph.getBlocks()) {
+            if(!loop.body.contains(b)) continue;
+            List<Instruction> instructions = b.getInstructions();
+            /* trapping expressions only from the header, and only before anything observable happens */
+            boolean evaluatedFirst = b == loop.header;
+            for(int i = 0; i < instructions.size(); i++) {
+                int end = match(instructions, i, locals, statics, fields, calls, thisNonNull, evaluatedFirst);
+                if(end < 0) {
+                    evaluatedFirst &= isQuiet(instructions.get(i));
+                    continue;
+                }
+
+                List<Instruction> expr = instructions.subList(i, end);
+                List<Object> key = new ArrayList<>();
+                for(Instruction ins : expr) {
+                    key.add(Arrays.asList(ins.getOpcode(), Arrays.toString(ins.getOperands()), ins.getTarget()));
+                }
+                Integer local = hiddenLocals.get(key);
+                if(local == null) {
+                    local = enter.getOperand(1) + hiddenLocals.size();
+                    if(local > Byte.MAX_VALUE) break;
+                    hiddenLocals.put(key, local);
+                    preheader.addAll(expr);
+                    preheader.add(Instruction.store(local));
+                }
+                expr.clear();
+                expr.add(Instruction.load(local));
+                hoisted++;
+            }
+        }
+        if(preheader.isEmpty()) return;
+
+        graph.getEntry().getInstructions().set(0,
+                new Instruction(CodeExt.enter, enter.getOperand(0), enter.getOperand(1) + hiddenLocals.size()));
+        BasicBlock pre = insertPreheader(graph, loop);
+        pre.getInstructions().addAll(preheader);
+        for(Loop outer : loops) {
+            if(outer != loop && outer.body.contains(loop.header)) outer.body.add(pre);
+        }
+        optimizedLoops++;
+    }
+
+    /* end of the longest invariant load; getfield*; arraylength? starting at i, -1 if none */
+    private int match(List<Instruction> instructions, int i, Set<Integer> locals, Set<Integer> statics,
+                      Set<Integer> fields, boolean calls, boolean thisNonNull, boolean evaluatedFirst) {
+        Instruction first = instructions.get(i);
+        boolean nonNull;
+        if(first.isLocalLoad() && !locals.contains(first.getLocal())) {
+            nonNull = thisNonNull && first.getLocal() == 0;
+        } else if(first.getOpcode() == CodeExt.getstatic && !calls && !statics.contains(first.getOperand(0))) {
+            nonNull = false;
+        } else {
+            return -1;
+        }
+
+        boolean mayTrap = false;
+        int j = i + 1;
+        for(; j < instructions.size(); j++) {
+            Instruction ins = instructions.get(j);
+            if(ins.getOpcode() != CodeExt.getfield || calls || fields.contains(ins.getOperand(0))) break;
+            mayTrap |= !nonNull;
+            nonNull = false;
+        }
+        if(j < instructions.size() && instructions.get(j).getOpcode() == CodeExt.arraylength) {
+            mayTrap = true;
+            j++;
+        }
+
+        if(j == i + 1 || (mayTrap && !evaluatedFirst)) return -1;
+        return j;
+    }
+
+    /* cannot trap and has no effect, so a hoisted expression may be evaluated before it */
+    private static boolean isQuiet(Instruction ins) {
+        int op = ins.getOpcode();
+        return ins.isLocalLoad() || ins.getConstant() != null || op == CodeExt.getstatic
+                || op == CodeExt.add || op == CodeExt.sub || op == CodeExt.mul || op == CodeExt.neg
+                || op == CodeExt.shl || op == CodeExt.shr || op == CodeExt.dup || op == CodeExt.dup2
+                || op == CodeExt.pop;
+    }
+
+    /* new block in front of the header, everything that enters the loop goes through it */
+    private static BasicBlock insertPreheader(ControlFlowGraph graph, Loop loop) {
+        BasicBlock header = loop.header;
+        BasicBlock pre = new BasicBlock();
+        pre.setFallthrough(header);
+        for(BasicBlock p : new ArrayList<>(header.getPredecessors())) {
+            if(loop.body.contains(p)) continue;
+            if(p.getFallthrough() == header) p.setFallthrough(pre);
+            if(p.getBranch() == header) {
+                p.setBranch(pre);
+                p.getLast().setTarget(pre.getLabel());
+            }
+            header.getPredecessors().remove(p);
+            pre.getPredecessors().add(p);
+        }
+        header.getPredecessors().add(pre);
+        graph.getBlocks().add(graph.getBlocks().indexOf(header), pre);
+        return pre;
+    }
+}
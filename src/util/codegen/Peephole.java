@@ -0,0 +1,202 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/* runs after code generation, rewrites small windows of the decoded buffer until nothing changes */
+public class Peephole {
+    public interface Rule {
+        /* try to rewrite the window starting at instruction i, true if anything changed */
+        boolean apply(Peephole peephole, int i);
+    }
+
+    private final Logger logger = Logger.getLogger(Peephole.class);
+    private final ArrayList<Rule> rules = new ArrayList<>();
+    private final Set<Instruction> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+    private InstructionList code;
+
+    public static Peephole withDefaultRules() {
+        return new Peephole()
+                .addRule(new StoreLoad())
+                .addRule(new ThreadJumps())
+                .addRule(new BranchOverJump())
+                .addRule(new Unreachable())
+                .addRule(new JumpToNext())
+                .addRule(new AddZero())
+                .addRule(new Increment());
+    }
+
+    public Peephole addRule(Rule rule) {
+        rules.add(rule);
+        return this;
+    }
+
+    public Instruction get(int i) {
+        List<Instruction> instructions = code.getInstructions();
+        return i >= 0 && i < instructions.size()? instructions.get(i) : null;
+    }
+
+    /* something jumps here, so the instruction cannot be merged with the one before it */
+    public boolean isTarget(Instruction ins) {
+        return targets.contains(ins);
+    }
+
+    /* replace count instructions at i, jumps into the window go to its replacement */
+    public void replace(int i, int count, Instruction... replacement) {
+        List<Instruction> window = code.getInstructions().subList(i, i + count);
+        Instruction forward = replacement.length > 0? replacement[0] : get(i + count);
+        Set<Instruction> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        kept.addAll(Arrays.asList(replacement));
+        for(Instruction removed : window) {
+            if(kept.contains(removed)) continue;
+            removed.setReplacedBy(forward);
+            if(targets.contains(removed)) targets.add(forward);
+        }
+        window.clear();
+        window.addAll(Arrays.asList(replacement));
+    }
+
+    /* removed jumps no longer count, so recount before every sweep */
+    private void findTargets() {
+        targets.clear();
+        for(Instruction entry : code.getEntries().values()) {
+            targets.add(InstructionList.resolve(entry));
+        }
+        targets.add(InstructionList.resolve(code.getMain()));
+        for(Instruction ins : code.getInstructions()) {
+            if(ins.getTarget() != null) targets.add(ins.getTarget());
+        }
+    }
+
+    public void run(InstructionList code) {
+        this.code = code;
+        int instructions = code.getInstructions().size();
+        int bytes = code.size();
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            findTargets();
+            for(int i = 0; i < code.getInstructions().size(); i++) {
+                for(Rule rule : rules) {
+                    changed |= rule.apply(this, i);
+                }
+            }
+        }
+
+        logger.info("Peephole removed " + (instructions - code.getInstructions().size()) + " instructions, "
+                + (bytes - code.size()) + " bytes");
+    }
+
+    /* x = ...; ... = x becomes dup, only when the shorter form is actually shorter */
+    public static class StoreLoad implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction store = p.get(i), load = p.get(i + 1);
+            if(store == null || load == null || p.isTarget(store) || p.isTarget(load)) return false;
+
+            boolean statics = store.getOpcode() == CodeExt.putstatic && load.getOpcode() == CodeExt.getstatic
+                    && store.getOperand(0) == load.getOperand(0);
+            boolean locals = store.getOpcode() == CodeExt.store && load.getOpcode() == CodeExt.load
+                    && store.getOperand(0) == load.getOperand(0);
+            if(!statics && !locals) return false;
+
+            p.replace(i, 2, new Instruction(CodeExt.dup), store);
+            return true;
+        }
+    }
+
+    /* jmp to the very next instruction */
+    public static class JumpToNext implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction jump = p.get(i);
+            if(jump == null || jump.getOpcode() != CodeExt.jmp || jump.getTarget() != p.get(i + 1)) return false;
+
+            p.replace(i, 1);
+            return true;
+        }
+    }
+
+    /* a jump to a jmp goes straight to where that jmp goes */
+    public static class ThreadJumps implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction jump = p.get(i);
+            if(!jump.isJump()) return false;
+
+            Instruction target = jump.getTarget();
+            /* bounded, jmp cycles never reach a final target */
+            for(int steps = 0; steps < 16 && target != null && target.getOpcode() == CodeExt.jmp
+                    && target.getTarget() != target; steps++) {
+                target = target.getTarget();
+            }
+            if(target == jump.getTarget()) return false;
+
+            jump.setTarget(target);
+            p.targets.add(target);
+            return true;
+        }
+    }
+
+    /* jcc L; jmp M; L: becomes the inverse jcc M */
+    public static class BranchOverJump implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction branch = p.get(i), jump = p.get(i + 1), next = p.get(i + 2);
+            if(next == null || !branch.isConditionalJump() || jump.getOpcode() != CodeExt.jmp) return false;
+            if(branch.getTarget() != next || p.isTarget(jump)) return false;
+
+            int cond = branch.getOpcode() - CodeExt.jcc;
+            p.replace(i, 2, Instruction.jump(CodeExt.jcc + CodeExt.inverse[cond], jump.getTarget()));
+            return true;
+        }
+    }
+
+    /* nothing falls through or jumps to the instruction after jmp, return or trap */
+    public static class Unreachable implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction end = p.get(i), dead = p.get(i + 1);
+            if(dead == null || !end.endsFlow() || p.isTarget(dead)) return false;
+
+            p.replace(i + 1, 1);
+            return true;
+        }
+    }
+
+    /* x + 0, x - 0 */
+    public static class AddZero implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction con = p.get(i), op = p.get(i + 1);
+            if(con == null || op == null || p.isTarget(op)) return false;
+            if(con.getOpcode() != CodeExt.const_n || (op.getOpcode() != CodeExt.add && op.getOpcode() != CodeExt.sub)) return false;
+
+            p.replace(i, 2);
+            return true;
+        }
+    }
+
+    /* load x; const c; add|sub; store x becomes inc x c */
+    public static class Increment implements Rule {
+        @Override
+        public boolean apply(Peephole p, int i) {
+            Instruction load = p.get(i), con = p.get(i + 1), op = p.get(i + 2), store = p.get(i + 3);
+            if(store == null || !load.isLocalLoad() || !store.isLocalStore() || load.getLocal() != store.getLocal()) return false;
+            if(p.isTarget(con) || p.isTarget(op) || p.isTarget(store) || con.getConstant() == null) return false;
+            if(op.getOpcode() != CodeExt.add && op.getOpcode() != CodeExt.sub) return false;
+
+            int value = op.getOpcode() == CodeExt.add? con.getConstant() : -con.getConstant();
+            if(value < Byte.MIN_VALUE || value > Byte.MAX_VALUE || load.getLocal() > Byte.MAX_VALUE) return false;
+
+            p.replace(i, 4, new Instruction(CodeExt.inc, load.getLocal(), value));
+            return true;
+        }
+    }
+}
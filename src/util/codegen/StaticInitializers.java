@@ -0,0 +1,134 @@
+package util.codegen;
+
+import org.apache.log4j.Logger;
+import rs.etf.pp1.symboltable.concepts.Obj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* static blocks are called once from main in declaration order, their bodies are merged into main instead */
+public class StaticInitializers {
+    private final Logger logger = Logger.getLogger(StaticInitializers.class);
+    private int dropped = 0;
+    private int merged = 0;
+    private int removedStores = 0;
+
+    public void run(InstructionList code, ArrayList<ControlFlowGraph> graphs) {
+        Map<Integer, ControlFlowGraph> byAdr = new HashMap<>();
+        ControlFlowGraph main = null;
+        for(ControlFlowGraph graph : graphs) {
+            if(graph.getMethod() != null) byAdr.put(graph.getMethod().getAdr(), graph);
+            if(graph.getEntry().getLabel() == code.getMain()) main = graph;
+        }
+        if(main == null) return;
+
+        ArrayList<ControlFlowGraph> initializers = new ArrayList<>();
+        for(Obj init : CodeExt.getInitializers()) {
+            if(byAdr.containsKey(init.getAdr())) initializers.add(byAdr.get(init.getAdr()));
+        }
+
+        Set<Integer> read = new HashSet<>();
+        for(ControlFlowGraph graph : graphs) {
+            for(BasicBlock b : graph.getBlocks()) {
+                for(Instruction ins : b.getInstructions()) {
+                    if(ins.getOpcode() == CodeExt.getstatic) read.add(ins.getOperand(0));
+                }
+            }
+        }
+        for(ControlFlowGraph init : initializers) removeUnreadStores(init, read);
+        if(!isCalled(graphs, main)) removeZeroStores(initializers);
+
+        Map<Instruction, ControlFlowGraph> byEntry = new IdentityHashMap<>();
+        for(ControlFlowGraph init : initializers) byEntry.put(init.getEntry().getLabel(), init);
+        List<BasicBlock> blocks = main.getBlocks();
+        for(int bi = 0; bi < blocks.size(); bi++) {
+            List<Instruction> instructions = blocks.get(bi).getInstructions();
+            for(int i = 0; i < instructions.size(); i++) {
+                Instruction ins = instructions.get(i);
+                ControlFlowGraph init = ins.getOpcode() == CodeExt.call? byEntry.get(ins.getTarget()) : null;
+                if(init == null) continue;
+                if(isEmpty(init)) {
+                    instructions.remove(i--);
+                    dropped++;
+                } else if(Inliner.hasPlainFrame(init) && Inliner.inline(main, bi, i, init)) {
+                    merged++;
+                    /* the remaining calls moved to the continuation */
+                    break;
+                }
+            }
+        }
+
+        logger.info("Static initializers dropped " + dropped + ", merged " + merged + " into main, removed "
+                + removedStores + " stores");
+    }
+
+    /* a constant stored into a static that nothing ever loads */
+    private void removeUnreadStores(ControlFlowGraph init, Set<Integer> read) {
+        for(BasicBlock b : init.getBlocks()) {
+            List<Instruction> instructions = b.getInstructions();
+            for(int i = 0; i + 1 < instructions.size(); i++) {
+                Instruction store = instructions.get(i + 1);
+                if(instructions.get(i).getConstant() == null || store.getOpcode() != CodeExt.putstatic) continue;
+                if(read.contains(store.getOperand(0))) continue;
+                instructions.subList(i, i + 2).clear();
+                removedStores++;
+                i--;
+            }
+        }
+    }
+
+    /* the data area starts zeroed, so a leading zero store is redundant until something else could write the static,
+     * as long as main is entered only once */
+    private void removeZeroStores(ArrayList<ControlFlowGraph> initializers) {
+        Set<Integer> written = new HashSet<>();
+        boolean calls = false;
+        for(ControlFlowGraph init : initializers) {
+            List<Instruction> entry = init.getEntry().getInstructions();
+            for(int i = 1; i + 1 < entry.size(); ) {
+                Instruction con = entry.get(i), store = entry.get(i + 1);
+                if(con.getConstant() == null || store.getOpcode() != CodeExt.putstatic) break;
+                if(con.getConstant() == 0 && !calls && !written.contains(store.getOperand(0))) {
+                    entry.subList(i, i + 2).clear();
+                    removedStores++;
+                } else {
+                    written.add(store.getOperand(0));
+                    i += 2;
+                }
+            }
+
+            for(BasicBlock b : init.getBlocks()) {
+                for(Instruction ins : b.getInstructions()) {
+                    if(ins.getOpcode() == CodeExt.putstatic) written.add(ins.getOperand(0));
+                    else if(ins.getOpcode() == CodeExt.call || ins.getOpcode() == CodeExt.invokevirtual) calls = true;
+                }
+            }
+        }
+    }
+
+    /* main runs the static blocks on every entry, a recursive main sees the statics it wrote on the way in */
+    private static boolean isCalled(ArrayList<ControlFlowGraph> graphs, ControlFlowGraph main) {
+        for(ControlFlowGraph graph : graphs) {
+            for(BasicBlock b : graph.getBlocks()) {
+                for(Instruction ins : b.getInstructions()) {
+                    if(ins.getOpcode() == CodeExt.call && ins.getTarget() == main.getEntry().getLabel()) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEmpty(ControlFlowGraph init) {
+        for(BasicBlock b : init.getBlocks()) {
+            for(Instruction ins : b.getInstructions()) {
+                int op = ins.getOpcode();
+                if(op != CodeExt.enter && op != CodeExt.exit && op != CodeExt.return_) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,253 @@
+package util.jvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* the body of one JVM method, branches go to labels and are patched once the code is complete.
+ * the stack depth is followed in code order, every label is expected at the depth of the code before it */
+public class Bytecode {
+    public static final int ACONST_NULL = 1, ICONST_M1 = 2, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19;
+    public static final int ILOAD = 21, ALOAD = 25, IALOAD = 46, AALOAD = 50, BALOAD = 51;
+    public static final int ISTORE = 54, ASTORE = 58, IASTORE = 79, AASTORE = 83, BASTORE = 84;
+    public static final int POP = 87, DUP = 89, DUP2 = 92;
+    public static final int IADD = 96, ISUB = 100, IMUL = 104, IDIV = 108, IREM = 112, INEG = 116;
+    public static final int ISHL = 120, ISHR = 122, IUSHR = 124, IAND = 126, IOR = 128, IXOR = 130, IINC = 132;
+    public static final int I2B = 145, I2C = 146;
+    public static final int IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158;
+    public static final int IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164;
+    public static final int IF_ACMPEQ = 165, IF_ACMPNE = 166, GOTO = 167;
+    public static final int IRETURN = 172, ARETURN = 176, RETURN = 177;
+    public static final int GETSTATIC = 178, PUTSTATIC = 179, GETFIELD = 180, PUTFIELD = 181;
+    public static final int INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184;
+    public static final int NEW = 187, NEWARRAY = 188, ANEWARRAY = 189, ARRAYLENGTH = 190, ATHROW = 191;
+    /* newarray operands */
+    public static final int T_BYTE = 8, T_INT = 10;
+
+    /* what an instruction does to the stack depth, those with a pool operand are worked out where they are emitted */
+    private static final int[] STACK_EFFECT = new int[256];
+    static {
+        effect(1, ACONST_NULL, BIPUSH, SIPUSH, LDC, LDC_W, ILOAD, ALOAD, DUP, NEW);
+        for(int i = ICONST_M1; i <= ICONST_0 + 5; i++) effect(1, i);
+        for(int i = 26; i <= 45; i++) effect(1, i);
+        effect(-1, IALOAD, AALOAD, BALOAD, ISTORE, ASTORE, POP, IADD, ISUB, IMUL, IDIV, IREM);
+        effect(-1, ISHL, ISHR, IUSHR, IAND, IOR, IXOR, IRETURN, ARETURN, ATHROW);
+        for(int i = 59; i <= 78; i++) effect(-1, i);
+        for(int i = IFEQ; i <= IFLE; i++) effect(-1, i);
+        for(int i = IF_ICMPEQ; i <= IF_ACMPNE; i++) effect(-2, i);
+        effect(-3, IASTORE, AASTORE, BASTORE);
+        effect(2, DUP2);
+    }
+
+    private static void effect(int delta, int... opcodes) {
+        for(int opcode : opcodes) STACK_EFFECT[opcode] = delta;
+    }
+
+    private final ClassWriter pool;
+    private final int maxStack;
+    private final int maxLocals;
+    private int depth = 0;
+    private int deepest = 0;
+    private int usedLocals = 0;
+    private byte[] code = new byte[256];
+    private int length = 0;
+    /* code offset of every label, -1 until it is placed */
+    private int[] labels = new int[16];
+    private int labelCount = 0;
+    /* offset of the branch instruction and of its operand, and the label it goes to */
+    private final ArrayList<int[]> branches = new ArrayList<>();
+
+    /* at least maxStack and maxLocals, more if the code needs them */
+    public Bytecode(ClassWriter pool, int maxStack, int maxLocals) {
+        this.pool = pool;
+        this.maxStack = maxStack;
+        this.maxLocals = maxLocals;
+    }
+
+    /* arguments is the number of local slots taken by this and the parameters */
+    public Bytecode(ClassWriter pool, int arguments) {
+        this(pool, 0, arguments);
+    }
+
+    public int getMaxStack() {
+        return Math.max(maxStack, deepest);
+    }
+
+    public int getMaxLocals() {
+        return Math.max(maxLocals, usedLocals);
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public int newLabel() {
+        if(labelCount == labels.length) labels = Arrays.copyOf(labels, 2 * labels.length);
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    public void mark(int label) {
+        labels[label] = length;
+    }
+
+    public void jump(int opcode, int label) {
+        branches.add(new int[] { length, length + 1, label });
+        op(opcode);
+        u2(0);
+    }
+
+    public void op(int opcode) {
+        u1(opcode);
+        stack(STACK_EFFECT[opcode]);
+    }
+
+    public void iconst(int value) {
+        if(value >= -1 && value <= 5) op(ICONST_0 + value);
+        else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH);
+            u1(value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH);
+            u2(value);
+        } else ldc(pool.integer(value));
+    }
+
+    public void ldc(String value) {
+        ldc(pool.string(value));
+    }
+
+    private void ldc(int index) {
+        if(index < 256) {
+            op(LDC);
+            u1(index);
+        } else {
+            op(LDC_W);
+            u2(index);
+        }
+    }
+
+    public void iload(int local) {
+        local(ILOAD, local);
+    }
+
+    public void istore(int local) {
+        local(ISTORE, local);
+    }
+
+    public void aload(int local) {
+        local(ALOAD, local);
+    }
+
+    public void astore(int local) {
+        local(ASTORE, local);
+    }
+
+    /* the short forms for 0 to 3 follow each opcode in the order load, store */
+    private void local(int opcode, int local) {
+        usedLocals = Math.max(usedLocals, local + 1);
+        if(local <= 3) {
+            int base = opcode == ILOAD? 26 : opcode == ALOAD? 42 : opcode == ISTORE? 59 : 75;
+            op(base + local);
+        } else {
+            op(opcode);
+            u1(local);
+        }
+    }
+
+    public void iinc(int local, int delta) {
+        usedLocals = Math.max(usedLocals, local + 1);
+        op(IINC);
+        u1(local);
+        u1(delta);
+    }
+
+    public void getfield(String owner, String name, String descriptor) {
+        member(GETFIELD, pool.fieldRef(owner, name, descriptor), slots(descriptor) - 1);
+    }
+
+    public void putfield(String owner, String name, String descriptor) {
+        member(PUTFIELD, pool.fieldRef(owner, name, descriptor), -slots(descriptor) - 1);
+    }
+
+    public void getstatic(String owner, String name, String descriptor) {
+        member(GETSTATIC, pool.fieldRef(owner, name, descriptor), slots(descriptor));
+    }
+
+    public void putstatic(String owner, String name, String descriptor) {
+        member(PUTSTATIC, pool.fieldRef(owner, name, descriptor), -slots(descriptor));
+    }
+
+    public void invokevirtual(String owner, String name, String descriptor) {
+        member(INVOKEVIRTUAL, pool.methodRef(owner, name, descriptor), callEffect(descriptor) - 1);
+    }
+
+    public void invokespecial(String owner, String name, String descriptor) {
+        member(INVOKESPECIAL, pool.methodRef(owner, name, descriptor), callEffect(descriptor) - 1);
+    }
+
+    public void invokestatic(String owner, String name, String descriptor) {
+        member(INVOKESTATIC, pool.methodRef(owner, name, descriptor), callEffect(descriptor));
+    }
+
+    public void anew(String internalName) {
+        member(NEW, pool.classRef(internalName), 1);
+    }
+
+    public void anewarray(String internalName) {
+        member(ANEWARRAY, pool.classRef(internalName), 0);
+    }
+
+    public void newarray(int type) {
+        op(NEWARRAY);
+        u1(type);
+    }
+
+    private void member(int opcode, int index, int effect) {
+        u1(opcode);
+        u2(index);
+        stack(effect);
+    }
+
+    /* the value of a call minus its arguments, the receiver is not counted */
+    private static int callEffect(String descriptor) {
+        int effect = 0;
+        int i = 1;
+        while(descriptor.charAt(i) != ')') {
+            int start = i;
+            while(descriptor.charAt(i) == '[') i++;
+            if(descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            effect -= slots(descriptor.substring(start, ++i));
+        }
+        return effect + slots(descriptor.substring(i + 1));
+    }
+
+    private static int slots(String type) {
+        return type.equals("V")? 0 : type.equals("J") || type.equals("D")? 2 : 1;
+    }
+
+    private void stack(int delta) {
+        depth += delta;
+        deepest = Math.max(deepest, depth);
+    }
+
+    private void u1(int value) {
+        if(length == code.length) code = Arrays.copyOf(code, 2 * code.length);
+        code[length++] = (byte)value;
+    }
+
+    private void u2(int value) {
+        u1(value >>> 8);
+        u1(value);
+    }
+
+    /* null when a branch does not fit in the 16 bit offset */
+    public byte[] toByteArray() {
+        for(int[] branch : branches) {
+            int offset = labels[branch[2]] - branch[0];
+            if(labels[branch[2]] < 0 || offset != (short)offset) return null;
+            code[branch[1]] = (byte)(offset >>> 8);
+            code[branch[1] + 1] = (byte)offset;
+        }
+        return Arrays.copyOf(code, length);
+    }
+}
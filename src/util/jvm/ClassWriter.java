@@ -0,0 +1,156 @@
+package util.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/* just enough of the class file format for Jit and JvmGenerator: fields, and methods assembled by Bytecode.
+ * version 49, so the verifier infers the types itself and no stack map frames are needed */
+public class ClassWriter {
+    private static final int VERSION = 49;
+    public static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private int poolCount = 1;
+    private final Map<String, Integer> entries = new HashMap<>();
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final ArrayList<byte[]> fields = new ArrayList<>();
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+
+    public ClassWriter(int access, String name, String superName, String... interfaceNames) {
+        this.access = access | ACC_SUPER;
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for(int i = 0; i < interfaceNames.length; i++) interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    int utf8(String value) {
+        String key = "utf8 " + value;
+        if(entries.containsKey(key)) return entries.get(key);
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add(key, 1);
+    }
+
+    int classRef(String internalName) {
+        return entry("class " + internalName, 7, utf8(internalName));
+    }
+
+    int string(String value) {
+        return entry("string " + value, 8, utf8(value));
+    }
+
+    int integer(int value) {
+        String key = "int " + value;
+        if(entries.containsKey(key)) return entries.get(key);
+        pool.write(3);
+        writeInt(value);
+        return add(key, 1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("field " + owner + "." + name + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("method " + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("nat " + name + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    /* tag and two byte indices of entries that are already in the pool */
+    private int entry(String key, int tag, int... indices) {
+        if(entries.containsKey(key)) return entries.get(key);
+        pool.write(tag);
+        for(int index : indices) writeShort(pool, index);
+        return add(key, 1);
+    }
+
+    private int add(String key, int slots) {
+        int index = poolCount;
+        poolCount += slots;
+        entries.put(key, index);
+        return index;
+    }
+
+    private void writeInt(int value) {
+        writeShort(pool, value >>> 16);
+        writeShort(pool, value);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    public void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        writeShort(field, access);
+        writeShort(field, utf8(name));
+        writeShort(field, utf8(descriptor));
+        /* no attributes */
+        writeShort(field, 0);
+        fields.add(field.toByteArray());
+    }
+
+    public void addMethod(int access, String name, String descriptor, Bytecode code) {
+        ByteArrayOutputStream method = new ByteArrayOutputStream();
+        writeShort(method, access);
+        writeShort(method, utf8(name));
+        writeShort(method, utf8(descriptor));
+        /* one attribute, Code */
+        writeShort(method, 1);
+        byte[] body = code.toByteArray();
+        writeShort(method, utf8("Code"));
+        int length = 2 + 2 + 4 + body.length + 2 + 2;
+        writeShort(method, length >>> 16);
+        writeShort(method, length);
+        writeShort(method, code.getMaxStack());
+        writeShort(method, code.getMaxLocals());
+        writeShort(method, body.length >>> 16);
+        writeShort(method, body.length);
+        method.write(body, 0, body.length);
+        /* no exception table, no attributes */
+        writeShort(method, 0);
+        writeShort(method, 0);
+        methods.add(method.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, 0xCAFE);
+        writeShort(out, 0xBABE);
+        writeShort(out, 0);
+        writeShort(out, VERSION);
+        writeShort(out, poolCount);
+        out.write(pool.toByteArray(), 0, pool.size());
+        writeShort(out, access);
+        writeShort(out, thisClass);
+        writeShort(out, superClass);
+        writeShort(out, interfaces.length);
+        for(int i : interfaces) writeShort(out, i);
+        writeShort(out, fields.size());
+        for(byte[] field : fields) out.write(field, 0, field.length);
+        writeShort(out, methods.size());
+        for(byte[] method : methods) out.write(method, 0, method.length);
+        /* no attributes */
+        writeShort(out, 0);
+        return out.toByteArray();
+    }
+}
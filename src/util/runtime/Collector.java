@@ -0,0 +1,298 @@
+package util.runtime;
+
+import util.codegen.GcMaps;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/* a mark-compact collector for the heap of Memory, run when an allocation does not fit, or before every one with
+ * -gc=stress. precise: the roots are the reference globals and, from the allocation down to main, the reference
+ * locals and expression stack slots util.codegen.GcMaps found for the method of every frame. live blocks slide
+ * down in address order, in place, so a heap mapped from a file or in a direct buffer is collected like one on the
+ * Java heap. every block starts with the header GcMaps gave its allocation site, an object is [header][fields] and
+ * an array [header][length][elements], references point past the header and the length like they do in Run */
+class Collector {
+    private static final int[] ZEROS = new int[4096];
+
+    private final int[] globals;
+    private final int[] layoutWords;
+    private final int[][] layoutRefs;
+    /* by code address: the header of what the new_ or newarray there allocates, 0 where there is none */
+    private final int[] siteHeader;
+    /* by code address, the frame maps of allocations, and of calls at their return address */
+    private final int[][] siteMap;
+    private final int[][] callMap;
+    private final boolean stress;
+    private final boolean stats;
+
+    /* one bit per heap word, set for every word of a live block, and the live words below every 64 of them */
+    private long[] live = new long[0];
+    private int[] below = new int[0];
+    private int[] marks = new int[256];
+    private int markTop;
+
+    private int collections = 0;
+    private long pauseTotal = 0;
+    private long pauseMax = 0;
+    private long reclaimed = 0;
+    private int liveWords = 0;
+
+    private Collector(int codeLength, byte[] maps, boolean stress, boolean stats) throws FormatException {
+        this.stress = stress;
+        this.stats = stats;
+        siteHeader = new int[codeLength + 1];
+        siteMap = new int[codeLength + 1][];
+        callMap = new int[codeLength + 1][];
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(maps))) {
+            globals = new int[in.readInt()];
+            for(int i = 0; i < globals.length; i++) globals[i] = in.readInt();
+            int layouts = in.readInt();
+            layoutWords = new int[layouts];
+            layoutRefs = new int[layouts][];
+            for(int i = 0; i < layouts; i++) {
+                layoutWords[i] = in.readInt();
+                layoutRefs[i] = new int[in.readInt()];
+                for(int k = 0; k < layoutRefs[i].length; k++) layoutRefs[i][k] = in.readInt();
+            }
+            for(int sites = in.readInt(); sites > 0; sites--) {
+                int adr = address(in.readInt());
+                siteHeader[adr] = in.readInt();
+                if(siteHeader[adr] >= 0 || siteHeader[adr] <= GcMaps.OBJECT - layouts) throw new FormatException("bad GC header");
+                siteMap[adr] = frameMap(in);
+            }
+            for(int calls = in.readInt(); calls > 0; calls--) {
+                int adr = address(in.readInt());
+                callMap[adr] = frameMap(in);
+            }
+        } catch(IOException | NegativeArraySizeException e) {
+            throw new FormatException("truncated GC maps");
+        }
+    }
+
+    private int address(int adr) throws FormatException {
+        if(adr < 0 || adr >= siteHeader.length) throw new FormatException("GC map outside the code");
+        return adr;
+    }
+
+    /* depth, count and stack slots, count and locals, as GcMaps wrote them */
+    private static int[] frameMap(DataInputStream in) throws IOException {
+        int depth = in.readInt();
+        int[] stack = new int[in.readInt()];
+        for(int i = 0; i < stack.length; i++) stack[i] = in.readInt();
+        int[] locals = new int[in.readInt()];
+        for(int i = 0; i < locals.length; i++) locals[i] = in.readInt();
+        int[] map = new int[3 + stack.length + locals.length];
+        map[0] = depth;
+        map[1] = stack.length;
+        System.arraycopy(stack, 0, map, 2, stack.length);
+        map[2 + stack.length] = locals.length;
+        System.arraycopy(locals, 0, map, 3 + stack.length, locals.length);
+        return map;
+    }
+
+    static boolean isOption(String option) {
+        return option.equals("-gc") || option.equals("-gc=stress") || option.equals("-gcstats");
+    }
+
+    /* -gc collects once the heap is full, -gc=stress before every allocation and -gcstats prints the pauses on
+     * System.err when the program ends. null without -gc */
+    static Collector fromOptions(String[] options, ObjectFile objectFile) throws FormatException {
+        boolean collect = false, stress = false, stats = false;
+        for(String option : options) {
+            if(option.equals("-gc")) collect = true;
+            else if(option.equals("-gc=stress")) collect = stress = true;
+            else if(option.equals("-gcstats")) stats = true;
+        }
+        if(!collect) return null;
+        if(objectFile.getGcMaps() == null) throw new IllegalArgumentException("no GC maps, compile the program with -gc");
+        return new Collector(objectFile.getCode().length, objectFile.getGcMaps(), stress, stats);
+    }
+
+    /* new_ at pc with its size in bytes, the registers are in the machine */
+    int allocate(Machine m, int pc, int size, int errorAdr) throws VMException {
+        int header = siteHeader[pc];
+        if(header > GcMaps.OBJECT) throw new VMException("no GC map for this allocation", pc);
+        int adr = reserve(m, pc, 1 + ((size + 3) >> 2), errorAdr);
+        m.heap.put(adr, header);
+        return adr + 1;
+    }
+
+    /* newarray at pc, the length still on the expression stack */
+    int allocateArray(Machine m, int pc, int errorAdr) throws VMException {
+        int header = siteHeader[pc];
+        if(header == 0 || header <= GcMaps.OBJECT) throw new VMException("no GC map for this allocation", pc);
+        int len = m.stack[m.esp - 1];
+        if(len < 0) throw new VMException("negative array size", errorAdr);
+        int adr = reserve(m, pc, 2 + (header == GcMaps.CHAR_ARRAY? ((long)len + 3) >> 2 : len), errorAdr);
+        m.heap.put(adr, header);
+        m.heap.put(adr + 1, len);
+        return adr + 2;
+    }
+
+    private int reserve(Machine m, int pc, long words, int errorAdr) throws VMException {
+        if(stress || m.free + words > m.heap.capacity()) collect(m, pc);
+        if(m.free + words > m.heap.capacity()) throw new VMException("heap overflow", errorAdr);
+        int adr = m.free;
+        m.free += (int)words;
+        return adr;
+    }
+
+    /* mark from the roots, then one pass over the heap moves every live block to the live words below it and
+     * points its references at where their blocks go */
+    private void collect(Machine m, int pc) throws VMException {
+        long start = System.nanoTime();
+        IntBuffer heap = m.heap, data = m.data;
+        int free = m.free;
+        int words = (free >> 6) + 1;
+        if(live.length < words) {
+            live = new long[Math.max(words, (heap.capacity() >> 6) + 1)];
+            below = new int[live.length];
+        }
+        Arrays.fill(live, 0, words, 0);
+
+        for(int adr : globals) mark(heap, free, data.get(adr), pc);
+        frames(m, pc, false);
+        while(markTop > 0) scan(heap, free, marks[--markTop], pc);
+
+        for(int i = 1; i < words; i++) below[i] = below[i - 1] + Long.bitCount(live[i - 1]);
+        for(int adr : globals) data.put(adr, forward(data.get(adr)));
+        frames(m, pc, true);
+
+        int to = 1;
+        /* blocks only move down, a forward copy never overwrites what it has yet to read */
+        IntBuffer source = heap.duplicate(), target = heap.duplicate();
+        for(int block = 1; block < free; ) {
+            int size = size(heap, block);
+            if(isLive(block)) {
+                refs(heap, block);
+                if(to != block) {
+                    source.limit(block + size);
+                    source.position(block);
+                    target.position(to);
+                    target.put(source);
+                }
+                to += size;
+            }
+            block += size;
+        }
+        target.position(to);
+        for(int adr = to; adr < free; adr += ZEROS.length) target.put(ZEROS, 0, Math.min(ZEROS.length, free - adr));
+        m.free = to;
+
+        long pause = System.nanoTime() - start;
+        collections++;
+        pauseTotal += pause;
+        pauseMax = Math.max(pauseMax, pause);
+        reclaimed += free - to;
+        liveWords = to - 1;
+    }
+
+    /* from the allocation at pc through the return addresses down to main: the reference locals of every frame
+     * and its part of the expression stack, marked, or updated to where their blocks go */
+    private void frames(Machine m, int pc, boolean update) throws VMException {
+        int[] map = siteMap[pc];
+        int fp = m.fp, top = m.esp;
+        for(;;) {
+            if(map == null || map[0] > top) throw new VMException("GC maps do not match the stack", pc);
+            int bottom = top - map[0];
+            int k = 1;
+            for(int n = map[k++]; n > 0; n--) root(m, m.stack, bottom + map[k++], update, pc);
+            for(int n = map[k++]; n > 0; n--) root(m, m.local, fp + map[k++], update, pc);
+            top = bottom;
+            /* main is entered without a call, its frame is the first one */
+            if(fp < 2) break;
+            int ret = Machine.returnAddress(m.local[fp - 2]);
+            fp = m.local[fp - 1];
+            map = ret >= 0 && ret < callMap.length? callMap[ret] : null;
+        }
+        if(top != 0) throw new VMException("GC maps do not match the stack", pc);
+    }
+
+    private void root(Machine m, int[] words, int i, boolean update, int pc) throws VMException {
+        if(update) words[i] = forward(words[i]);
+        else mark(m.heap, m.free, words[i], pc);
+    }
+
+    /* the block of a reference starts at its header, right before an object, before the length of an array */
+    private static int block(IntBuffer heap, int ref) {
+        return heap.get(ref - 1) < 0? ref - 1 : ref - 2;
+    }
+
+    private int size(IntBuffer heap, int block) {
+        int header = heap.get(block);
+        if(header <= GcMaps.OBJECT) return 1 + layoutWords[GcMaps.OBJECT - header];
+        int len = heap.get(block + 1);
+        return 2 + (header == GcMaps.CHAR_ARRAY? (len + 3) >> 2 : len);
+    }
+
+    private void mark(IntBuffer heap, int free, int ref, int pc) throws VMException {
+        if(ref == 0) return;
+        if(ref < 2 || ref > free) throw new VMException("GC found a reference outside the heap", pc);
+        int block = block(heap, ref);
+        if(isLive(block)) return;
+        setLive(block, block + size(heap, block));
+        if(markTop == marks.length) marks = Arrays.copyOf(marks, 2 * marks.length);
+        marks[markTop++] = block;
+    }
+
+    private void scan(IntBuffer heap, int free, int block, int pc) throws VMException {
+        int header = heap.get(block);
+        if(header <= GcMaps.OBJECT) {
+            for(int offset : layoutRefs[GcMaps.OBJECT - header]) mark(heap, free, heap.get(block + 1 + offset), pc);
+        } else if(header == GcMaps.REF_ARRAY) {
+            int len = heap.get(block + 1);
+            for(int i = 0; i < len; i++) mark(heap, free, heap.get(block + 2 + i), pc);
+        }
+    }
+
+    /* the references of a live block, before it moves */
+    private void refs(IntBuffer heap, int block) {
+        int header = heap.get(block);
+        if(header <= GcMaps.OBJECT) {
+            for(int offset : layoutRefs[GcMaps.OBJECT - header]) {
+                heap.put(block + 1 + offset, forward(heap.get(block + 1 + offset)));
+            }
+        } else if(header == GcMaps.REF_ARRAY) {
+            int len = heap.get(block + 1);
+            for(int i = 0; i < len; i++) heap.put(block + 2 + i, forward(heap.get(block + 2 + i)));
+        }
+    }
+
+    /* the words of a block are all live, so a reference moves down by the dead words below it, even one
+     * just past an empty array */
+    private int forward(int ref) {
+        if(ref == 0) return 0;
+        return 1 + below[ref >> 6] + Long.bitCount(live[ref >> 6] & ((1L << ref) - 1));
+    }
+
+    private boolean isLive(int adr) {
+        return (live[adr >> 6] & (1L << adr)) != 0;
+    }
+
+    /* from up to, but not including, to */
+    private void setLive(int from, int to) {
+        int first = from >> 6, last = (to - 1) >> 6;
+        long head = -1L << from, tail = -1L >>> (63 - ((to - 1) & 63));
+        if(first == last) {
+            live[first] |= head & tail;
+            return;
+        }
+        live[first] |= head;
+        for(int i = first + 1; i < last; i++) live[i] = -1L;
+        live[last] |= tail;
+    }
+
+    /* -gcstats, once the program ended after runNanos */
+    void report(PrintStream err, long runNanos) {
+        if(!stats) return;
+        double pause = pauseTotal / 1e6;
+        err.printf("GC: %d collections, %.3f ms paused, %.3f ms at most, %.3f ms on average, %d words reclaimed, "
+                        + "%d words live after the last one, throughput %.1f%%%n", collections, pause, pauseMax / 1e6,
+                collections == 0? 0.0 : pause / collections, reclaimed, liveWords,
+                runNanos <= 0? 100.0 : 100.0 * (1 - (double)pauseTotal / runNanos));
+    }
+}
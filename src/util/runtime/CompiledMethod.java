@@ -0,0 +1,9 @@
+package util.runtime;
+
+import java.io.IOException;
+
+/* an MJ method translated to JVM code by Jit. entry is the method's enter or, when the interpreter hands over
+ * a running loop, one of its loop headers. returns the return address it popped, Machine.END after main */
+public interface CompiledMethod {
+    int run(Machine m, int entry) throws VMException, IOException;
+}
@@ -0,0 +1,168 @@
+package util.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+
+/* runs object files through both rs.etf.pp1.mj.runtime.Run and Interpreter on the same input and compares
+ * everything they print except the timing line, once interpreted, once with every method compiled by Jit
+ * on its first call and once more so on a heap mapped from a file. object files with GC maps run twice more,
+ * interpreted and compiled, with a collection before every allocation, unless Run ran out of heap, which is what
+ * the collector is there to avoid. a jar from Main -jvm next to an object
+ * file is run as well, its runtime errors are JVM exceptions, so only the output before an error and whether
+ * there was one are compared.
+ * <input file> <object files or directories>... */
+public class DifferentialRun {
+    private static final int[] THRESHOLDS = { 0, 1, 1, 0, 1 };
+    private static final String[] TIERS = { "Interpreter", "Jit", "Jit on a mapped heap",
+            "Interpreter collecting at every allocation", "Jit collecting at every allocation" };
+    private static final String STRESS = "-gc=stress";
+    private static final String RUNTIME_ERROR = "\n-- runtime error";
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.out.println("Syntax: java util.runtime.DifferentialRun input objects...");
+            System.exit(2);
+        }
+        byte[] input = Files.readAllBytes(new File(args[0]).toPath());
+        File heapFile = File.createTempFile("mjheap", ".bin");
+        heapFile.deleteOnExit();
+        String[][] options = { {}, {}, { "-heapfile=" + heapFile }, { STRESS }, { STRESS } };
+        ArrayList<File> objects = new ArrayList<>();
+        for(int i = 1; i < args.length; i++) addObjects(new File(args[i]), objects);
+
+        int different = 0;
+        for(File object : objects) {
+            String expected = withoutTiming(reference(object, input));
+            boolean same = true;
+            boolean collected = hasGcMaps(object) && !expected.endsWith(": heap overflow\n");
+            for(int tier = 0; tier < THRESHOLDS.length && same; tier++) {
+                if(!collected && Arrays.asList(options[tier]).contains(STRESS)) continue;
+                String actual = withoutTiming(interpreted(object, input, THRESHOLDS[tier], options[tier]));
+                if(expected.equals(actual)) continue;
+                same = false;
+                System.out.println("DIFFERENT  " + object);
+                printFirstDifference(expected, actual, TIERS[tier]);
+            }
+            File jar = new File(object.getPath().replaceFirst("\\.obj$", ".jar"));
+            if(same && jar.isFile()) {
+                String actual = jvm(jar, input);
+                if(!withoutError(expected).equals(actual)) {
+                    same = false;
+                    System.out.println("DIFFERENT  " + jar);
+                    printFirstDifference(withoutError(expected), actual, "the jar");
+                }
+            }
+            if(same) System.out.println("same       " + object);
+            else different++;
+        }
+        System.out.println((objects.size() - different) + " of " + objects.size() + " object files run the same");
+        System.exit(different == 0? 0 : 1);
+    }
+
+    private static void printFirstDifference(String expected, String actual, String tier) {
+        String[] e = expected.split("\n", -1), a = actual.split("\n", -1);
+        for(int line = 0; line < Math.max(e.length, a.length); line++) {
+            String el = line < e.length? e[line] : "", al = line < a.length? a[line] : "";
+            if(el.equals(al)) continue;
+            System.out.println("  line " + (line + 1) + ": Run printed \"" + el + "\", " + tier + " printed \"" + al + "\"");
+            return;
+        }
+    }
+
+    private static void addObjects(File file, ArrayList<File> objects) {
+        if(!file.isDirectory()) {
+            objects.add(file);
+            return;
+        }
+        File[] children = file.listFiles((d, name) -> name.endsWith(".obj"));
+        if(children == null) return;
+        Arrays.sort(children);
+        objects.addAll(Arrays.asList(children));
+    }
+
+    /* Run works on System.in and System.out, both are swapped out for the run */
+    private static String reference(File object, byte[] input) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream oldOut = System.out;
+        InputStream oldIn = System.in;
+        try(PrintStream out = new PrintStream(bytes, true)) {
+            System.setOut(out);
+            System.setIn(new ByteArrayInputStream(input));
+            rs.etf.pp1.mj.runtime.Run.main(new String[] { object.getPath() });
+        } catch(RuntimeException | StackOverflowError e) {
+            append(bytes, "\n-- crashed: " + e);
+        } finally {
+            System.setOut(oldOut);
+            System.setIn(oldIn);
+        }
+        return bytes.toString();
+    }
+
+    private static void append(ByteArrayOutputStream bytes, String text) {
+        byte[] b = text.getBytes();
+        bytes.write(b, 0, b.length);
+    }
+
+    /* compiled with Main -gc */
+    private static boolean hasGcMaps(File object) {
+        try {
+            return ObjectFile.load(object).getGcMaps() != null;
+        } catch(IOException | FormatException e) {
+            return false;
+        }
+    }
+
+    private static String interpreted(File object, byte[] input, int jitThreshold, String[] options) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(PrintStream out = new PrintStream(bytes, true)) {
+            try {
+                Interpreter.execute(object.getPath(), jitThreshold, options, new ByteArrayInputStream(input), out);
+            } catch(RuntimeException | StackOverflowError e) {
+                out.print("\n-- crashed: " + e);
+            }
+        }
+        return bytes.toString();
+    }
+
+    /* the main class of the jar in a class loader of its own, on the swapped System.in and System.out */
+    private static String jvm(File jar, byte[] input) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream oldOut = System.out;
+        InputStream oldIn = System.in;
+        try(PrintStream out = new PrintStream(bytes, true);
+            URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, ClassLoader.getSystemClassLoader().getParent());
+            JarFile jarFile = new JarFile(jar)) {
+            System.setOut(out);
+            System.setIn(new ByteArrayInputStream(input));
+            String mainClass = jarFile.getManifest().getMainAttributes().getValue("Main-Class");
+            loader.loadClass(mainClass).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } catch(InvocationTargetException e) {
+            append(bytes, RUNTIME_ERROR);
+        } catch(Exception | LinkageError e) {
+            append(bytes, "\n-- crashed: " + e);
+        } finally {
+            System.setOut(oldOut);
+            System.setIn(oldIn);
+        }
+        return bytes.toString();
+    }
+
+    private static String withoutError(String output) {
+        return output.replaceFirst("\n-- exception at address \\d+: [^\n]*\n$", RUNTIME_ERROR);
+    }
+
+    private static String withoutTiming(String output) {
+        return output.replaceFirst("\nCompletion took \\d+ ms$", "");
+    }
+}
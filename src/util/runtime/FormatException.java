@@ -0,0 +1,9 @@
+package util.runtime;
+
+class FormatException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    FormatException(String message) {
+        super(message);
+    }
+}
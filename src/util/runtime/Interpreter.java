@@ -0,0 +1,564 @@
+package util.runtime;
+
+import rs.etf.pp1.mj.runtime.Code;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+/* runs an object file like rs.etf.pp1.mj.runtime.Run, same memory sizes, same output and error messages.
+ * the code is decoded once into arrays indexed by code address, with the operands sign extended and the
+ * jump targets absolute, and the stacks live in locals of one dispatch loop */
+public class Interpreter {
+    static final int HEAP_SIZE = 100000;
+    static final int METHOD_STACK_SIZE = 400;
+    static final int EXPRESSION_STACK_SIZE = 30;
+
+    private static final int JEQ = Code.jcc, JNE = Code.jcc + 1, JLT = Code.jcc + 2;
+    private static final int JLE = Code.jcc + 3, JGT = Code.jcc + 4, JGE = Code.jcc + 5;
+
+    private final int dataSize;
+    private final int startPc;
+    /* one entry per code address, as if an instruction started there. load_n, store_n and const_n are
+     * folded into load, store and const_ with the number as operand */
+    final int[] op;
+    final int[] a;
+    final int[] b;
+    final int[] next;
+    /* invokevirtual name words, up to and including -1 */
+    final int[][] names;
+    /* null when nothing is collected, the heap is laid out like Run's then */
+    final Collector collector;
+    /* null when everything is interpreted */
+    private final Jit jit;
+
+    public Interpreter(ObjectFile objectFile) {
+        this(objectFile, 0);
+    }
+
+    public Interpreter(ObjectFile objectFile, int jitThreshold) {
+        this(objectFile, jitThreshold, null);
+    }
+
+    /* with a positive threshold, methods called or looping that many times are compiled by Jit */
+    Interpreter(ObjectFile objectFile, int jitThreshold, Collector collector) {
+        this.collector = collector;
+        byte[] code = objectFile.getCode();
+        dataSize = objectFile.getDataSize();
+        startPc = objectFile.getStartPc();
+        /* one past the end decodes as opcode 0, running off the code is a wrong opcode */
+        op = new int[code.length + 1];
+        a = new int[code.length + 1];
+        b = new int[code.length + 1];
+        next = new int[code.length + 1];
+        names = new int[code.length + 1][];
+        for(int adr = 0; adr < code.length; adr++) decode(code, adr);
+        next[code.length] = code.length;
+        jit = jitThreshold > 0? new Jit(this, jitThreshold) : null;
+    }
+
+    private void decode(byte[] code, int adr) {
+        int opcode = code[adr];
+        int p = adr + 1;
+        op[adr] = opcode;
+        switch(opcode) {
+            case Code.load: case Code.store: case Code.newarray: case Code.trap:
+                a[adr] = get1(code, p);
+                p += 1;
+                break;
+            case Code.load_n: case Code.load_1: case Code.load_2: case Code.load_3:
+                op[adr] = Code.load;
+                a[adr] = opcode - Code.load_n;
+                break;
+            case Code.store_n: case Code.store_1: case Code.store_2: case Code.store_3:
+                op[adr] = Code.store;
+                a[adr] = opcode - Code.store_n;
+                break;
+            case Code.const_n: case Code.const_1: case Code.const_2: case Code.const_3: case Code.const_4: case Code.const_5:
+                op[adr] = Code.const_;
+                a[adr] = opcode - Code.const_n;
+                break;
+            case Code.const_m1:
+                op[adr] = Code.const_;
+                a[adr] = -1;
+                break;
+            case Code.const_:
+                a[adr] = get4(code, p);
+                p += 4;
+                break;
+            case Code.getstatic: case Code.putstatic: case Code.getfield: case Code.putfield: case Code.new_:
+                a[adr] = get2(code, p);
+                p += 2;
+                break;
+            case Code.inc: case Code.enter:
+                a[adr] = get1(code, p);
+                b[adr] = get1(code, p + 1);
+                p += 2;
+                break;
+            case Code.jmp: case Code.call: case JEQ: case JNE: case JLT: case JLE: case JGT: case JGE:
+                a[adr] = codeAddress(code, adr + get2(code, p));
+                p += 2;
+                break;
+            case Code.invokevirtual:
+                int count = 0;
+                while(p + 4 * count + 4 <= code.length && get4(code, p + 4 * count) != -1) count++;
+                int[] words = new int[count + 1];
+                for(int i = 0; i < count; i++) words[i] = get4(code, p + 4 * i);
+                words[count] = -1;
+                names[adr] = words;
+                p += 4 * (count + 1);
+                break;
+            default:
+                break;
+        }
+        next[adr] = Math.min(p, code.length);
+    }
+
+    /* outside the code runs into the wrong opcode at its end */
+    private static int codeAddress(byte[] code, int adr) {
+        return adr < 0 || adr > code.length? code.length : adr;
+    }
+
+    private static int get1(byte[] code, int p) {
+        return p < code.length? code[p] : 0;
+    }
+
+    private static int get2(byte[] code, int p) {
+        return (short)((get1(code, p) << 8) + (get1(code, p + 1) & 0xFF));
+    }
+
+    private static int get4(byte[] code, int p) {
+        return (get2(code, p) << 16) + (get2(code, p + 2) & 0xFFFF);
+    }
+
+    /* errors found before the operands are read are reported at the opcode, the rest at the last operand byte */
+    VMException after(String message, int pc) {
+        return new VMException(message, next[pc] - 1);
+    }
+
+    /* runs main until its return, a runtime error ends the program with Run's message */
+    public void run(InputStream in, PrintStream out) throws IOException {
+        run(in, out, Memory.fromOptions(new String[0], dataSize));
+    }
+
+    /* on memory from Memory.fromOptions, closed once the program ended */
+    public void run(InputStream in, PrintStream out, Memory memory) throws IOException {
+        Machine m = new Machine(this, memory, in, out);
+        long start = System.nanoTime();
+        try {
+            interpret(m, startPc);
+        } catch(VMException e) {
+            out.println("\n-- exception at address " + e.getAdr() + ": " + e.getMessage());
+        } finally {
+            memory.close(m.free);
+            if(collector != null) collector.report(System.err, System.nanoTime() - start);
+        }
+    }
+
+    /* a call from compiled code, in compiled code too once the method is hot */
+    int invoke(Machine m, int target) throws VMException, IOException {
+        CompiledMethod method = jit != null? jit.onCall(target) : null;
+        return method != null? method.run(m, target) : interpret(m, target);
+    }
+
+    /* from pc until main returns (Machine.END) or a method called from compiled code does (below Machine.COMPILED).
+     * the stack registers live in locals and go back into the machine whenever compiled code takes over or the
+     * collector may run, free stays in the machine for Memory.close */
+    private int interpret(Machine m, int pc) throws VMException, IOException {
+        int[] op = this.op, a = this.a, b = this.b, next = this.next;
+        int[] stack = m.stack, local = m.local;
+        IntBuffer data = m.data, heap = m.heap;
+        int heapSize = heap.capacity();
+        int esp = m.esp, sp = m.sp, fp = m.fp;
+        Jit jit = this.jit;
+        CompiledMethod method;
+        int adr, val, idx, len;
+
+        for(;;) {
+            switch(op[pc]) {
+                case Code.load:
+                    if(esp == EXPRESSION_STACK_SIZE) throw after("expression stack overflow", pc);
+                    stack[esp++] = local[fp + a[pc]];
+                    break;
+                case Code.store:
+                    if(esp == 0) throw after("expression stack underflow", pc);
+                    local[fp + a[pc]] = stack[--esp];
+                    break;
+                case Code.getstatic:
+                    if(esp == EXPRESSION_STACK_SIZE) throw after("expression stack overflow", pc);
+                    stack[esp++] = data.get(a[pc]);
+                    break;
+                case Code.putstatic:
+                    if(esp == 0) throw after("expression stack underflow", pc);
+                    data.put(a[pc], stack[--esp]);
+                    break;
+                case Code.getfield:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    adr = stack[esp - 1];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    stack[esp - 1] = heap.get(adr + a[pc]);
+                    break;
+                case Code.putfield:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    val = stack[--esp];
+                    adr = stack[--esp];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    heap.put(adr + a[pc], val);
+                    break;
+                case Code.const_:
+                    if(esp == EXPRESSION_STACK_SIZE) throw after("expression stack overflow", pc);
+                    stack[esp++] = a[pc];
+                    break;
+                case Code.add:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    esp--;
+                    stack[esp - 1] += stack[esp];
+                    break;
+                case Code.sub:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    esp--;
+                    stack[esp - 1] -= stack[esp];
+                    break;
+                case Code.mul:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    esp--;
+                    stack[esp - 1] *= stack[esp];
+                    break;
+                case Code.div:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    val = stack[--esp];
+                    if(val == 0) throw new VMException("division by zero", pc);
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    stack[esp - 1] /= val;
+                    break;
+                case Code.rem:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    val = stack[--esp];
+                    if(val == 0) throw new VMException("division by zero", pc);
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    stack[esp - 1] %= val;
+                    break;
+                case Code.neg:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    stack[esp - 1] = -stack[esp - 1];
+                    break;
+                case Code.shl:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    esp--;
+                    stack[esp - 1] <<= stack[esp];
+                    break;
+                case Code.shr:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    esp--;
+                    stack[esp - 1] >>= stack[esp];
+                    break;
+                case Code.inc:
+                    local[fp + a[pc]] += b[pc];
+                    break;
+
+                case Code.new_:
+                    if(collector != null) {
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        adr = collector.allocate(m, pc, a[pc], next[pc] - 1);
+                    } else {
+                        adr = m.free;
+                        m.free += (a[pc] + 3) >> 2;
+                        if(m.free > heapSize) throw after("heap overflow", pc);
+                    }
+                    if(esp == EXPRESSION_STACK_SIZE) throw after("expression stack overflow", pc);
+                    stack[esp++] = adr;
+                    break;
+                case Code.newarray:
+                    if(esp == 0) throw after("expression stack underflow", pc);
+                    if(collector != null) {
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        stack[esp - 1] = collector.allocateArray(m, pc, next[pc] - 1);
+                        break;
+                    }
+                    len = stack[esp - 1];
+                    adr = m.free;
+                    /* char arrays are packed four to a word */
+                    m.free += ((a[pc] == 0? len + 4 : len * 4 + 4) + 3) >> 2;
+                    if(m.free > heapSize) throw after("heap overflow", pc);
+                    heap.put(adr, len);
+                    stack[esp - 1] = adr + 1;
+                    break;
+                case Code.aload:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    idx = stack[--esp];
+                    adr = stack[esp - 1];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    if(idx < 0 || idx >= heap.get(adr - 1)) throw new VMException("index out of bounds", pc);
+                    stack[esp - 1] = heap.get(adr + idx);
+                    break;
+                case Code.astore:
+                    if(esp < 3) throw new VMException("expression stack underflow", pc);
+                    val = stack[--esp];
+                    idx = stack[--esp];
+                    adr = stack[--esp];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    if(idx < 0 || idx >= heap.get(adr - 1)) throw new VMException("index out of bounds", pc);
+                    heap.put(adr + idx, val);
+                    break;
+                case Code.baload:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    idx = stack[--esp];
+                    adr = stack[esp - 1];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    if(idx < 0 || idx >= heap.get(adr - 1)) throw new VMException("index out of bounds", pc);
+                    /* byte 0 is the most significant one, read back sign extended */
+                    stack[esp - 1] = (byte)(heap.get(adr + idx / 4) << (8 * (idx % 4)) >>> 24);
+                    break;
+                case Code.bastore:
+                    if(esp < 3) throw new VMException("expression stack underflow", pc);
+                    val = stack[--esp];
+                    idx = stack[--esp];
+                    adr = stack[--esp];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    if(idx < 0 || idx >= heap.get(adr - 1)) throw new VMException("index out of bounds", pc);
+                    int shift = (3 - idx % 4) * 8;
+                    heap.put(adr + idx / 4, (heap.get(adr + idx / 4) & ~(255 << shift)) ^ ((val & 255) << shift));
+                    break;
+                case Code.arraylength:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    adr = stack[esp - 1];
+                    if(adr == 0) throw new VMException("null reference used", pc);
+                    stack[esp - 1] = heap.get(adr - 1);
+                    break;
+
+                case Code.pop:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    esp--;
+                    break;
+                case Code.dup:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    if(esp == EXPRESSION_STACK_SIZE) throw new VMException("expression stack overflow", pc);
+                    stack[esp] = stack[esp - 1];
+                    esp++;
+                    break;
+                case Code.dup2:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    if(esp + 2 > EXPRESSION_STACK_SIZE) throw new VMException("expression stack overflow", pc);
+                    stack[esp] = stack[esp - 2];
+                    stack[esp + 1] = stack[esp - 1];
+                    esp += 2;
+                    break;
+                case Code.dup_x1:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    if(esp == EXPRESSION_STACK_SIZE) throw new VMException("expression stack overflow", pc);
+                    val = stack[esp - 1];
+                    stack[esp - 1] = stack[esp - 2];
+                    stack[esp - 2] = val;
+                    stack[esp++] = val;
+                    break;
+                case Code.dup_x2:
+                    if(esp < 3) throw new VMException("expression stack underflow", pc);
+                    if(esp == EXPRESSION_STACK_SIZE) throw new VMException("expression stack overflow", pc);
+                    val = stack[esp - 1];
+                    stack[esp - 1] = stack[esp - 2];
+                    stack[esp - 2] = stack[esp - 3];
+                    stack[esp - 3] = val;
+                    stack[esp++] = val;
+                    break;
+
+                case Code.jmp:
+                    if(jit != null && a[pc] <= pc && (method = jit.onBackEdge(pc, a[pc])) != null) {
+                        /* the rest of the loop runs compiled, from its header */
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        pc = method.run(m, a[pc]);
+                        esp = m.esp; sp = m.sp; fp = m.fp;
+                        if(pc < 0) return pc;
+                        continue;
+                    }
+                    pc = a[pc];
+                    continue;
+                case JEQ: case JNE: case JLT: case JLE: case JGT: case JGE:
+                    if(esp < 2) throw after("expression stack underflow", pc);
+                    val = stack[esp - 2];
+                    int val2 = stack[esp - 1];
+                    esp -= 2;
+                    boolean cond;
+                    switch(op[pc]) {
+                        case JEQ: cond = val == val2; break;
+                        case JNE: cond = val != val2; break;
+                        case JLT: cond = val < val2; break;
+                        case JLE: cond = val <= val2; break;
+                        case JGT: cond = val > val2; break;
+                        default: cond = val >= val2;
+                    }
+                    if(!cond) break;
+                    if(jit != null && a[pc] <= pc && (method = jit.onBackEdge(pc, a[pc])) != null) {
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        pc = method.run(m, a[pc]);
+                        esp = m.esp; sp = m.sp; fp = m.fp;
+                        if(pc < 0) return pc;
+                        continue;
+                    }
+                    pc = a[pc];
+                    continue;
+
+                case Code.call:
+                    if(sp == METHOD_STACK_SIZE) throw after("method stack overflow", pc);
+                    local[sp++] = next[pc];
+                    pc = a[pc];
+                    if(jit != null && (method = jit.onCall(pc)) != null) {
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        pc = method.run(m, pc);
+                        esp = m.esp; sp = m.sp; fp = m.fp;
+                        if(pc < 0) return pc;
+                    }
+                    continue;
+                case Code.return_:
+                    if(sp == 0) return Machine.END;
+                    pc = local[--sp];
+                    if(pc < 0) {
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        return pc;
+                    }
+                    continue;
+                case Code.enter:
+                    if(sp == METHOD_STACK_SIZE) throw after("method stack overflow", pc);
+                    local[sp++] = fp;
+                    fp = sp;
+                    if(b[pc] > 0) {
+                        if(sp + b[pc] > METHOD_STACK_SIZE) throw after("method stack overflow", pc);
+                        for(int i = 0; i < b[pc]; i++) local[sp++] = 0;
+                    }
+                    for(int i = a[pc] - 1; i >= 0; i--) {
+                        if(esp == 0) throw after("expression stack underflow", pc);
+                        local[fp + i] = stack[--esp];
+                    }
+                    break;
+                case Code.exit:
+                    sp = fp;
+                    if(sp == 0) throw new VMException("method stack underflow", pc);
+                    fp = local[--sp];
+                    break;
+
+                case Code.invokevirtual:
+                    if(esp == 0) throw new VMException("expression stack underflow", pc);
+                    int target = lookup(pc, data, stack[--esp]);
+                    if(sp == METHOD_STACK_SIZE) throw after("method stack overflow", pc);
+                    local[sp++] = next[pc];
+                    pc = target;
+                    if(jit != null && (method = jit.onCall(pc)) != null) {
+                        m.esp = esp; m.sp = sp; m.fp = fp;
+                        pc = method.run(m, pc);
+                        esp = m.esp; sp = m.sp; fp = m.fp;
+                        if(pc < 0) return pc;
+                    }
+                    continue;
+
+                case Code.read:
+                    if(esp == EXPRESSION_STACK_SIZE) throw new VMException("expression stack overflow", pc);
+                    stack[esp++] = m.readInt(pc);
+                    break;
+                case Code.print:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    len = stack[--esp];
+                    m.print(stack[--esp], len);
+                    break;
+                case Code.bread:
+                    if(esp == EXPRESSION_STACK_SIZE) throw new VMException("expression stack overflow", pc);
+                    stack[esp++] = m.bread();
+                    break;
+                case Code.bprint:
+                    if(esp < 2) throw new VMException("expression stack underflow", pc);
+                    len = stack[--esp];
+                    m.bprint(stack[--esp], len);
+                    break;
+                case Code.trap:
+                    throw after("trap(" + a[pc] + ")", pc);
+                default:
+                    throw new VMException("wrong opcode " + op[pc], pc);
+            }
+            pc = next[pc];
+        }
+    }
+
+    /* walks the table at tvfp for the name of the invokevirtual at adr:
+     * name words, -1, method address for every entry and -2 at the end */
+    int lookup(int adr, IntBuffer data, int tvfp) throws VMException {
+        int[] name = names[adr];
+        int p = tvfp;
+        while(data.get(p) != -2) {
+            int k = 0;
+            while(name[k] != -1 && data.get(p + k) == name[k]) {
+                /* Run checks for the end of the table after every matching word */
+                if(data.get(p + ++k) == -2) throw after("method address not found", adr);
+            }
+            if(name[k] == -1 && data.get(p + k) == -1) {
+                int target = data.get(p + k + 1);
+                /* outside the code runs into the wrong opcode at its end */
+                return target < 0 || target >= op.length? op.length - 1 : target;
+            }
+            /* skip the rest of this entry's name and its address */
+            p += k;
+            while(data.get(p) != -1) p++;
+            p += 2;
+        }
+        throw after("method address not found", adr);
+    }
+
+    /* <object file> [-jit | -jit=threshold] [-heap=MiB] [-heapfile=file] [-snapshot=file] [-gc | -gc=stress] [-gcstats],
+     * the same output as Run without -debug */
+    public static void main(String[] args) throws IOException {
+        String fileName = null;
+        int jitThreshold = 0;
+        ArrayList<String> options = new ArrayList<>();
+        for(String arg : args) {
+            if(arg.equals("-jit")) jitThreshold = Jit.DEFAULT_THRESHOLD;
+            else if(arg.startsWith("-jit=")) jitThreshold = Integer.parseInt(arg.substring("-jit=".length()));
+            else if(Memory.isOption(arg) || Collector.isOption(arg)) options.add(arg);
+            else fileName = arg;
+        }
+        if(fileName == null) {
+            System.out.println("Syntax: java util.runtime.Interpreter filename [-jit | -jit=threshold] [-heap=MiB] [-heapfile=file] [-snapshot=file] [-gc | -gc=stress] [-gcstats]");
+            return;
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        try {
+            execute(fileName, jitThreshold, options.toArray(new String[0]), new BufferedInputStream(System.in), out);
+        } finally {
+            out.flush();
+        }
+    }
+
+    /* what Run.main does for one file, with the options of Memory and Collector */
+    static void execute(String fileName, int jitThreshold, String[] options, InputStream in, PrintStream out) {
+        try {
+            ObjectFile objectFile = ObjectFile.load(new File(fileName));
+            Interpreter interpreter;
+            Memory memory;
+            try {
+                interpreter = new Interpreter(objectFile, jitThreshold, Collector.fromOptions(options, objectFile));
+                memory = Memory.fromOptions(options, objectFile.getDataSize());
+            } catch(IllegalArgumentException e) {
+                out.println("-- " + e.getMessage());
+                return;
+            } catch(IOException e) {
+                out.println("-- cannot map the heap file: " + e.getMessage());
+                return;
+            } catch(OutOfMemoryError e) {
+                /* direct buffers are limited by -XX:MaxDirectMemorySize, -Xmx by default */
+                out.println("-- " + e.getMessage());
+                return;
+            }
+            long start = System.currentTimeMillis();
+            interpreter.run(in, out, memory);
+            out.print("\nCompletion took " + (System.currentTimeMillis() - start) + " ms");
+        } catch(FileNotFoundException e) {
+            out.println("-- file " + fileName + " not found");
+        } catch(FormatException e) {
+            out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+        } catch(IOException e) {
+            out.println("-- error reading file " + fileName);
+        }
+    }
+}
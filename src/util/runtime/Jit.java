@@ -0,0 +1,904 @@
+package util.runtime;
+
+import rs.etf.pp1.mj.runtime.Code;
+import util.jvm.Bytecode;
+import util.jvm.ClassWriter;
+
+import static util.jvm.Bytecode.*;
+
+/* the second tier: a method called or looping often enough is translated into a JVM class, one template per
+ * MJ instruction, and HotSpot takes it from there. the method's locals become JVM locals, esp and the frames
+ * are still kept in the Machine, so errors come out at the same address as in the interpreter. with a collector
+ * the locals go back to the Machine around calls and allocations, where it finds and moves the references.
+ * methods without a plain frame, and anything the class loader refuses, stay interpreted */
+class Jit {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    /* JVM locals of the generated run method: the temporaries, the top of the expression stack that is not
+     * in Machine.stack yet and the MJ locals */
+    private static final int M = 1, ENTRY = 2, ESP = 3, STACK = 4, HEAP = 5, DATA = 6;
+    private static final int T0 = 7, T1 = 8, T2 = 9, T3 = 10, T4 = 11;
+    private static final int CACHED = 12, LOCALS = CACHED + Interpreter.EXPRESSION_STACK_SIZE;
+    private static final int MAX_STACK = 8;
+    /* 16 bit branch offsets, larger methods stay interpreted */
+    private static final int MAX_CODE = Short.MAX_VALUE;
+
+    private static final String MACHINE = "util/runtime/Machine";
+    private static final String ARRAY = "[I";
+    private static final String BUFFER = "Ljava/nio/IntBuffer;";
+    private static final String UNDERFLOW = "expression stack underflow";
+    private static final String OVERFLOW = "expression stack overflow";
+    private static final String NULL = "null reference used";
+    private static final String BOUNDS = "index out of bounds";
+
+    private static final int JEQ = Code.jcc, JNE = Code.jcc + 1, JLT = Code.jcc + 2;
+    private static final int JLE = Code.jcc + 3, JGT = Code.jcc + 4, JGE = Code.jcc + 5;
+
+    private final Interpreter code;
+    private final int threshold;
+    /* calls at method entries, taken back edges at loop headers */
+    private final int[] counters;
+    private final CompiledMethod[] compiled;
+    private final boolean[] attempted;
+    /* loop headers a compiled method can be entered at from the interpreter */
+    private final boolean[] osrEntry;
+    /* the enter before every address, there is no method table in the object file */
+    private final int[] methodOf;
+    private final Loader loader = new Loader();
+
+    Jit(Interpreter code, int threshold) {
+        this.code = code;
+        this.threshold = threshold;
+        int length = code.op.length;
+        counters = new int[length];
+        compiled = new CompiledMethod[length];
+        attempted = new boolean[length];
+        osrEntry = new boolean[length];
+        methodOf = new int[length];
+        int method = -1;
+        for(int pc = 0; pc < length; pc = code.next[pc] > pc? code.next[pc] : pc + 1) {
+            if(code.op[pc] == Code.enter) method = pc;
+            methodOf[pc] = method;
+        }
+    }
+
+    /* null while the method at target is to be interpreted */
+    CompiledMethod onCall(int target) {
+        CompiledMethod method = compiled[target];
+        if(method != null || attempted[target]) return method;
+        if(++counters[target] >= threshold) compile(target);
+        return compiled[target];
+    }
+
+    /* a taken backward jump at from, the method is entered at header if it can be */
+    CompiledMethod onBackEdge(int from, int header) {
+        if(counters[header] < threshold) {
+            counters[header]++;
+            return null;
+        }
+        int entry = methodOf[header];
+        if(entry < 0 || methodOf[from] != entry) return null;
+        if(!attempted[entry]) compile(entry);
+        return osrEntry[header]? compiled[entry] : null;
+    }
+
+    private void compile(int entry) {
+        attempted[entry] = true;
+        int[] op = code.op, a = code.a, b = code.b, next = code.next;
+        if(op[entry] != Code.enter) return;
+        int params = a[entry], locals = b[entry];
+        if(locals < 0 || params < 0 || params > locals) return;
+
+        /* everything reachable from enter. blocks start at jump targets and where paths meet, loop headers are
+         * the targets of backward jumps */
+        boolean[] reachable = new boolean[op.length];
+        boolean[] targets = new boolean[op.length];
+        boolean[] headers = new boolean[op.length];
+        int[] predecessors = new int[op.length];
+        int[] work = new int[op.length];
+        int top = 0;
+        work[top++] = entry;
+        reachable[entry] = true;
+        while(top > 0) {
+            int pc = work[--top];
+            if(!fits(pc, entry, locals)) return;
+            for(int s : successors(pc)) {
+                if(s == entry) return;
+                /* return_ only right after exit, so the frame is gone when the method returns */
+                if(op[s] == Code.return_ && (op[pc] != Code.exit || s != next[pc])) return;
+                if(s != next[pc] || ++predecessors[s] > 1) targets[s] = true;
+                if(s <= pc) headers[s] = true;
+                if(!reachable[s]) {
+                    reachable[s] = true;
+                    work[top++] = s;
+                }
+            }
+        }
+
+        byte[] bytes = new Translator(entry, locals).translate(reachable, targets, headers);
+        if(bytes == null) return;
+        try {
+            Class<?> c = loader.define("MJMethod_" + entry, bytes);
+            compiled[entry] = (CompiledMethod)c.getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError e) {
+            /* a class the verifier refuses leaves the method to the interpreter */
+            return;
+        }
+        for(int pc = 0; pc < op.length; pc++) if(headers[pc]) osrEntry[pc] = true;
+    }
+
+    /* one enter at the start, exit always followed by return_ and no local outside the frame */
+    private boolean fits(int pc, int entry, int locals) {
+        int op = code.op[pc];
+        if(op == Code.enter && pc != entry) return false;
+        if(op == Code.exit && code.op[code.next[pc]] != Code.return_) return false;
+        if(op == Code.load || op == Code.store || op == Code.inc) return code.a[pc] >= 0 && code.a[pc] < locals;
+        return true;
+    }
+
+    private int[] successors(int pc) {
+        int op = code.op[pc];
+        switch(op) {
+            case Code.jmp:
+                return new int[] { code.a[pc] };
+            case JEQ: case JNE: case JLT: case JLE: case JGT: case JGE:
+                return new int[] { code.next[pc], code.a[pc] };
+            case Code.return_: case Code.trap:
+                return new int[0];
+            default:
+                /* anything that is not an instruction ends the program */
+                return op >= Code.load && op <= Code.dup_x2? new int[] { code.next[pc] } : new int[0];
+        }
+    }
+
+    /* one method into one class. inside a block the values pushed by one instruction and popped by a later one
+     * stay in JVM locals, they go to Machine.stack at the end of the block and before calls. a runtime error
+     * ends the program, so what is cached when one is thrown is never looked at */
+    private class Translator {
+        private final int entry;
+        private final int locals;
+        private final ClassWriter cw;
+        private final Bytecode c;
+        private final int[] labels;
+        /* values above Machine.stack[esp], in CACHED, CACHED + 1, ... */
+        private int cached = 0;
+
+        Translator(int entry, int locals) {
+            this.entry = entry;
+            this.locals = locals;
+            cw = new ClassWriter(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, "MJMethod_" + entry, "java/lang/Object",
+                    "util/runtime/CompiledMethod");
+            c = new Bytecode(cw, MAX_STACK, LOCALS + locals);
+            labels = new int[code.op.length];
+        }
+
+        /* the class file, null when the code would be too large */
+        byte[] translate(boolean[] reachable, boolean[] targets, boolean[] headers) {
+            Bytecode init = new Bytecode(cw, 1, 1);
+            init.aload(0);
+            init.invokespecial("java/lang/Object", "<init>", "()V");
+            init.op(RETURN);
+            cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+
+            for(int pc = 0; pc < labels.length; pc++) labels[pc] = reachable[pc]? c.newLabel() : -1;
+            prologue(headers);
+
+            /* an instruction that falls through to one that is not emitted right after it needs a goto */
+            int pending = -1;
+            for(int pc = 0; pc < reachable.length; pc++) {
+                if(!reachable[pc]) continue;
+                if(pending >= 0 && (targets[pc] || code.next[pending] != pc)) flush();
+                if(pending >= 0 && code.next[pending] != pc) c.jump(GOTO, labels[code.next[pending]]);
+                if(pending < 0) cached = 0;
+                c.mark(labels[pc]);
+                pending = emit(pc)? pc : -1;
+                if(c.size() > MAX_CODE) return null;
+            }
+            if(pending >= 0) {
+                flush();
+                c.jump(GOTO, labels[code.next[pending]]);
+            }
+
+            if(c.toByteArray() == null) return null;
+            cw.addMethod(ClassWriter.ACC_PUBLIC, "run", "(L" + MACHINE + ";I)I", c);
+            return cw.toByteArray();
+        }
+
+        /* registers and arrays into locals, from a loop header the interpreter's frame is taken over */
+        private void prologue(boolean[] headers) {
+            c.aload(M);
+            c.getfield(MACHINE, "esp", "I");
+            c.istore(ESP);
+            c.aload(M);
+            c.getfield(MACHINE, "stack", ARRAY);
+            c.astore(STACK);
+            c.aload(M);
+            c.getfield(MACHINE, "heap", BUFFER);
+            c.astore(HEAP);
+            c.aload(M);
+            c.getfield(MACHINE, "data", BUFFER);
+            c.astore(DATA);
+            for(int i = T0; i < LOCALS + locals; i++) {
+                c.iconst(0);
+                c.istore(i);
+            }
+            for(int pc = 0; pc < headers.length; pc++) {
+                if(!headers[pc]) continue;
+                int other = c.newLabel();
+                c.iload(ENTRY);
+                c.iconst(pc);
+                c.jump(IF_ICMPNE, other);
+                load();
+                c.jump(GOTO, labels[pc]);
+                c.mark(other);
+            }
+            c.jump(GOTO, labels[entry]);
+        }
+
+        /* the template of one instruction, true when it falls through to the next one */
+        private boolean emit(int pc) {
+            int[] a = code.a, b = code.b;
+            int after = code.next[pc] - 1;
+            switch(code.op[pc]) {
+                case Code.load:
+                    room(1, after);
+                    c.iload(LOCALS + a[pc]);
+                    push();
+                    return true;
+                case Code.store:
+                    needs(1, after);
+                    pop(LOCALS + a[pc]);
+                    return true;
+                case Code.getstatic:
+                    room(1, after);
+                    c.aload(DATA);
+                    c.iconst(a[pc]);
+                    get();
+                    push();
+                    return true;
+                case Code.putstatic:
+                    needs(1, after);
+                    pop(T0);
+                    c.aload(DATA);
+                    c.iconst(a[pc]);
+                    c.iload(T0);
+                    put();
+                    return true;
+                case Code.getfield:
+                    needs(1, pc);
+                    pop(T0);
+                    notNull(T0, pc);
+                    c.aload(HEAP);
+                    c.iload(T0);
+                    c.iconst(a[pc]);
+                    c.op(IADD);
+                    get();
+                    push();
+                    return true;
+                case Code.putfield:
+                    needs(2, pc);
+                    pop(T1);
+                    pop(T0);
+                    notNull(T0, pc);
+                    c.aload(HEAP);
+                    c.iload(T0);
+                    c.iconst(a[pc]);
+                    c.op(IADD);
+                    c.iload(T1);
+                    put();
+                    return true;
+                case Code.const_:
+                    room(1, after);
+                    c.iconst(a[pc]);
+                    push();
+                    return true;
+                case Code.add:
+                    binary(IADD, pc);
+                    return true;
+                case Code.sub:
+                    binary(ISUB, pc);
+                    return true;
+                case Code.mul:
+                    binary(IMUL, pc);
+                    return true;
+                case Code.shl:
+                    binary(ISHL, pc);
+                    return true;
+                case Code.shr:
+                    binary(ISHR, pc);
+                    return true;
+                case Code.div: case Code.rem:
+                    needs(1, pc);
+                    pop(T1);
+                    int nonZero = c.newLabel();
+                    c.iload(T1);
+                    c.jump(IFNE, nonZero);
+                    fail("division by zero", pc);
+                    c.mark(nonZero);
+                    needs(1, pc);
+                    pop(T0);
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.op(code.op[pc] == Code.div? IDIV : IREM);
+                    push();
+                    return true;
+                case Code.neg:
+                    needs(1, pc);
+                    pop(T0);
+                    c.iload(T0);
+                    c.op(INEG);
+                    push();
+                    return true;
+                case Code.inc:
+                    c.iinc(LOCALS + a[pc], b[pc]);
+                    return true;
+
+                case Code.new_:
+                    if(code.collector != null) {
+                        flush();
+                        storeEsp();
+                        spill();
+                        c.aload(M);
+                        c.iconst(a[pc]);
+                        c.iconst(pc);
+                        c.invokevirtual(MACHINE, "allocateObject", "(II)I");
+                        c.istore(T0);
+                        reload();
+                        room(1, after);
+                        c.iload(T0);
+                        push();
+                        return true;
+                    }
+                    c.aload(M);
+                    c.iconst(a[pc]);
+                    c.iconst(after);
+                    c.invokevirtual(MACHINE, "allocate", "(II)I");
+                    c.istore(T0);
+                    room(1, after);
+                    c.iload(T0);
+                    push();
+                    return true;
+                case Code.newarray:
+                    needs(1, after);
+                    if(code.collector != null) {
+                        /* the length stays on the stack, where the collector's map has it */
+                        flush();
+                        storeEsp();
+                        spill();
+                        c.aload(M);
+                        c.iconst(pc);
+                        c.invokevirtual(MACHINE, "allocateArray", "(I)I");
+                        c.istore(T1);
+                        reload();
+                        pop(T0);
+                        c.iload(T1);
+                        push();
+                        return true;
+                    }
+                    pop(T0);
+                    c.aload(M);
+                    c.iload(T0);
+                    /* char arrays are packed four to a word */
+                    if(a[pc] != 0) {
+                        c.iconst(4);
+                        c.op(IMUL);
+                    }
+                    c.iconst(4);
+                    c.op(IADD);
+                    c.iconst(after);
+                    c.invokevirtual(MACHINE, "allocate", "(II)I");
+                    c.istore(T1);
+                    c.aload(HEAP);
+                    c.iload(T1);
+                    c.iload(T0);
+                    put();
+                    c.iload(T1);
+                    c.iconst(1);
+                    c.op(IADD);
+                    push();
+                    return true;
+                case Code.aload:
+                    needs(2, pc);
+                    pop(T1);
+                    pop(T0);
+                    element(pc);
+                    c.aload(HEAP);
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.op(IADD);
+                    get();
+                    push();
+                    return true;
+                case Code.astore:
+                    needs(3, pc);
+                    pop(T2);
+                    pop(T1);
+                    pop(T0);
+                    element(pc);
+                    c.aload(HEAP);
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.op(IADD);
+                    c.iload(T2);
+                    put();
+                    return true;
+                case Code.baload:
+                    needs(2, pc);
+                    pop(T1);
+                    pop(T0);
+                    element(pc);
+                    /* byte 0 is the most significant one, read back sign extended */
+                    c.aload(HEAP);
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.iconst(4);
+                    c.op(IDIV);
+                    c.op(IADD);
+                    get();
+                    c.iconst(8);
+                    c.iload(T1);
+                    c.iconst(4);
+                    c.op(IREM);
+                    c.op(IMUL);
+                    c.op(ISHL);
+                    c.iconst(24);
+                    c.op(IUSHR);
+                    c.op(I2B);
+                    push();
+                    return true;
+                case Code.bastore:
+                    needs(3, pc);
+                    pop(T2);
+                    pop(T1);
+                    pop(T0);
+                    element(pc);
+                    /* T3 is the shift of the byte, T4 the word it is in */
+                    c.iconst(3);
+                    c.iload(T1);
+                    c.iconst(4);
+                    c.op(IREM);
+                    c.op(ISUB);
+                    c.iconst(8);
+                    c.op(IMUL);
+                    c.istore(T3);
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.iconst(4);
+                    c.op(IDIV);
+                    c.op(IADD);
+                    c.istore(T4);
+                    c.aload(HEAP);
+                    c.iload(T4);
+                    c.aload(HEAP);
+                    c.iload(T4);
+                    get();
+                    c.iconst(255);
+                    c.iload(T3);
+                    c.op(ISHL);
+                    c.iconst(-1);
+                    c.op(IXOR);
+                    c.op(IAND);
+                    c.iload(T2);
+                    c.iconst(255);
+                    c.op(IAND);
+                    c.iload(T3);
+                    c.op(ISHL);
+                    c.op(IXOR);
+                    put();
+                    return true;
+                case Code.arraylength:
+                    needs(1, pc);
+                    pop(T0);
+                    notNull(T0, pc);
+                    c.aload(HEAP);
+                    c.iload(T0);
+                    c.iconst(1);
+                    c.op(ISUB);
+                    get();
+                    push();
+                    return true;
+
+                case Code.pop:
+                    needs(1, pc);
+                    if(cached > 0) cached--;
+                    else c.iinc(ESP, -1);
+                    return true;
+                case Code.dup:
+                    needs(1, pc);
+                    room(1, pc);
+                    pop(T0);
+                    pushAll(T0, T0);
+                    return true;
+                case Code.dup2:
+                    needs(2, pc);
+                    room(2, pc);
+                    pop(T1);
+                    pop(T0);
+                    pushAll(T0, T1, T0, T1);
+                    return true;
+                case Code.dup_x1:
+                    needs(2, pc);
+                    room(1, pc);
+                    pop(T1);
+                    pop(T0);
+                    pushAll(T1, T0, T1);
+                    return true;
+                case Code.dup_x2:
+                    needs(3, pc);
+                    room(1, pc);
+                    pop(T2);
+                    pop(T1);
+                    pop(T0);
+                    pushAll(T2, T0, T1, T2);
+                    return true;
+
+                case Code.jmp:
+                    flush();
+                    c.jump(GOTO, labels[a[pc]]);
+                    return false;
+                case JEQ: case JNE: case JLT: case JLE: case JGT: case JGE:
+                    needs(2, after);
+                    pop(T1);
+                    pop(T0);
+                    flush();
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.jump(condition(code.op[pc]), labels[a[pc]]);
+                    return true;
+
+                case Code.call:
+                    c.aload(M);
+                    c.getfield(MACHINE, "sp", "I");
+                    c.iconst(Interpreter.METHOD_STACK_SIZE);
+                    int room = c.newLabel();
+                    c.jump(IF_ICMPLT, room);
+                    fail("method stack overflow", after);
+                    c.mark(room);
+                    flush();
+                    storeEsp();
+                    spill();
+                    c.aload(M);
+                    c.iconst(a[pc]);
+                    c.iconst(code.next[pc]);
+                    c.invokevirtual(MACHINE, "call", "(II)I");
+                    returned();
+                    return true;
+                case Code.invokevirtual:
+                    needs(1, pc);
+                    pop(T0);
+                    flush();
+                    storeEsp();
+                    spill();
+                    c.aload(M);
+                    c.iconst(pc);
+                    c.iload(T0);
+                    c.invokevirtual(MACHINE, "invokevirtual", "(II)I");
+                    returned();
+                    return true;
+                case Code.return_:
+                    flush();
+                    storeEsp();
+                    int pop = c.newLabel();
+                    c.aload(M);
+                    c.getfield(MACHINE, "sp", "I");
+                    c.jump(IFNE, pop);
+                    c.iconst(Machine.END);
+                    c.op(IRETURN);
+                    c.mark(pop);
+                    c.aload(M);
+                    c.getfield(MACHINE, "sp", "I");
+                    c.iconst(1);
+                    c.op(ISUB);
+                    c.istore(T0);
+                    c.aload(M);
+                    c.iload(T0);
+                    c.putfield(MACHINE, "sp", "I");
+                    c.aload(M);
+                    c.getfield(MACHINE, "local", ARRAY);
+                    c.iload(T0);
+                    c.op(IALOAD);
+                    c.op(IRETURN);
+                    return false;
+                case Code.enter:
+                    enter(pc, after);
+                    return true;
+                case Code.exit:
+                    exit(pc);
+                    return true;
+
+                case Code.read:
+                    room(1, pc);
+                    c.aload(M);
+                    c.iconst(pc);
+                    c.invokevirtual(MACHINE, "readInt", "(I)I");
+                    push();
+                    return true;
+                case Code.print: case Code.bprint:
+                    needs(2, pc);
+                    pop(T1);
+                    pop(T0);
+                    c.aload(M);
+                    c.iload(T0);
+                    c.iload(T1);
+                    c.invokevirtual(MACHINE, code.op[pc] == Code.print? "print" : "bprint", "(II)V");
+                    return true;
+                case Code.bread:
+                    room(1, pc);
+                    c.aload(M);
+                    c.invokevirtual(MACHINE, "bread", "()I");
+                    push();
+                    return true;
+                case Code.trap:
+                    fail("trap(" + a[pc] + ")", after);
+                    return false;
+                default:
+                    fail("wrong opcode " + code.op[pc], pc);
+                    return false;
+            }
+        }
+
+        /* the frame is counted on Machine.local like in Run, the locals themselves are JVM locals */
+        private void enter(int pc, int after) {
+            int room = c.newLabel();
+            c.aload(M);
+            c.getfield(MACHINE, "sp", "I");
+            c.iconst(Interpreter.METHOD_STACK_SIZE);
+            c.jump(IF_ICMPLT, room);
+            fail("method stack overflow", after);
+            c.mark(room);
+            c.aload(M);
+            c.getfield(MACHINE, "sp", "I");
+            c.istore(T0);
+            c.aload(M);
+            c.getfield(MACHINE, "local", ARRAY);
+            c.iload(T0);
+            c.aload(M);
+            c.getfield(MACHINE, "fp", "I");
+            c.op(IASTORE);
+            c.iinc(T0, 1);
+            c.aload(M);
+            c.iload(T0);
+            c.putfield(MACHINE, "fp", "I");
+            if(locals > 0) {
+                int fits = c.newLabel();
+                c.iload(T0);
+                c.iconst(locals);
+                c.op(IADD);
+                c.iconst(Interpreter.METHOD_STACK_SIZE);
+                c.jump(IF_ICMPLE, fits);
+                fail("method stack overflow", after);
+                c.mark(fits);
+            }
+            c.aload(M);
+            c.iload(T0);
+            c.iconst(locals);
+            c.op(IADD);
+            c.putfield(MACHINE, "sp", "I");
+            for(int i = code.a[pc] - 1; i >= 0; i--) {
+                needs(1, after);
+                pop(LOCALS + i);
+            }
+        }
+
+        private void exit(int pc) {
+            c.aload(M);
+            c.aload(M);
+            c.getfield(MACHINE, "fp", "I");
+            c.putfield(MACHINE, "sp", "I");
+            int frame = c.newLabel();
+            c.aload(M);
+            c.getfield(MACHINE, "sp", "I");
+            c.jump(IFNE, frame);
+            fail("method stack underflow", pc);
+            c.mark(frame);
+            c.aload(M);
+            c.getfield(MACHINE, "sp", "I");
+            c.iconst(1);
+            c.op(ISUB);
+            c.istore(T0);
+            c.aload(M);
+            c.iload(T0);
+            c.putfield(MACHINE, "sp", "I");
+            c.aload(M);
+            c.aload(M);
+            c.getfield(MACHINE, "local", ARRAY);
+            c.iload(T0);
+            c.op(IALOAD);
+            c.putfield(MACHINE, "fp", "I");
+        }
+
+        /* the MJ locals from Machine.local */
+        private void load() {
+            for(int i = 0; i < locals; i++) {
+                c.aload(M);
+                c.getfield(MACHINE, "local", ARRAY);
+                c.aload(M);
+                c.getfield(MACHINE, "fp", "I");
+                c.iconst(i);
+                c.op(IADD);
+                c.op(IALOAD);
+                c.istore(LOCALS + i);
+            }
+        }
+
+        /* before anything that can collect, the collector only sees Machine.local */
+        private void spill() {
+            if(code.collector == null) return;
+            for(int i = 0; i < locals; i++) {
+                c.aload(M);
+                c.getfield(MACHINE, "local", ARRAY);
+                c.aload(M);
+                c.getfield(MACHINE, "fp", "I");
+                c.iconst(i);
+                c.op(IADD);
+                c.iload(LOCALS + i);
+                c.op(IASTORE);
+            }
+        }
+
+        /* after it, the references may have moved */
+        private void reload() {
+            if(code.collector != null) load();
+        }
+
+        private void storeEsp() {
+            c.aload(M);
+            c.iload(ESP);
+            c.putfield(MACHINE, "esp", "I");
+        }
+
+        /* the result of Machine.call, END when main returned somewhere below */
+        private void returned() {
+            int normal = c.newLabel();
+            c.iconst(Machine.END);
+            c.jump(IF_ICMPNE, normal);
+            c.iconst(Machine.END);
+            c.op(IRETURN);
+            c.mark(normal);
+            c.aload(M);
+            c.getfield(MACHINE, "esp", "I");
+            c.istore(ESP);
+            reload();
+        }
+
+        private void fail(String message, int adr) {
+            c.aload(M);
+            c.ldc(message);
+            c.iconst(adr);
+            c.invokevirtual(MACHINE, "error", "(Ljava/lang/String;I)Lutil/runtime/VMException;");
+            c.op(ATHROW);
+        }
+
+        /* at least n values on the expression stack, the cached ones are there for sure */
+        private void needs(int n, int adr) {
+            if(n <= cached) return;
+            int ok = c.newLabel();
+            c.iload(ESP);
+            c.iconst(n - cached);
+            c.jump(IF_ICMPGE, ok);
+            fail(UNDERFLOW, adr);
+            c.mark(ok);
+        }
+
+        /* room for n more */
+        private void room(int n, int adr) {
+            int ok = c.newLabel();
+            c.iload(ESP);
+            c.iconst(Interpreter.EXPRESSION_STACK_SIZE - cached - n);
+            c.jump(IF_ICMPLE, ok);
+            fail(OVERFLOW, adr);
+            c.mark(ok);
+        }
+
+        private void notNull(int local, int adr) {
+            int ok = c.newLabel();
+            c.iload(local);
+            c.jump(IFNE, ok);
+            fail(NULL, adr);
+            c.mark(ok);
+        }
+
+        /* array in T0 and index in T1 */
+        private void element(int adr) {
+            notNull(T0, adr);
+            int bad = c.newLabel(), ok = c.newLabel();
+            c.iload(T1);
+            c.jump(IFLT, bad);
+            c.iload(T1);
+            c.aload(HEAP);
+            c.iload(T0);
+            c.iconst(1);
+            c.op(ISUB);
+            get();
+            c.jump(IF_ICMPLT, ok);
+            c.mark(bad);
+            fail(BOUNDS, adr);
+            c.mark(ok);
+        }
+
+        /* buffer and index on the JVM stack, absolute and bounds checked like the interpreter's */
+        private void get() {
+            c.invokevirtual("java/nio/IntBuffer", "get", "(I)I");
+        }
+
+        /* buffer, index and value */
+        private void put() {
+            c.invokevirtual("java/nio/IntBuffer", "put", "(II)Ljava/nio/IntBuffer;");
+            c.op(POP);
+        }
+
+        /* the value on top of the JVM stack */
+        private void push() {
+            /* only after a failed overflow check, the rest of the block is dead */
+            if(cached == Interpreter.EXPRESSION_STACK_SIZE) flush();
+            c.istore(CACHED + cached++);
+        }
+
+        private void pushAll(int... values) {
+            for(int local : values) {
+                c.iload(local);
+                push();
+            }
+        }
+
+        private void pop(int local) {
+            if(cached > 0) {
+                c.iload(CACHED + --cached);
+            } else {
+                c.iinc(ESP, -1);
+                c.aload(STACK);
+                c.iload(ESP);
+                c.op(IALOAD);
+            }
+            c.istore(local);
+        }
+
+        /* the cached values into Machine.stack */
+        private void flush() {
+            for(int i = 0; i < cached; i++) {
+                c.aload(STACK);
+                c.iload(ESP);
+                if(i > 0) {
+                    c.iconst(i);
+                    c.op(IADD);
+                }
+                c.iload(CACHED + i);
+                c.op(IASTORE);
+            }
+            if(cached > 0) c.iinc(ESP, cached);
+            cached = 0;
+        }
+
+        /* stack[esp - 2] op= stack[esp - 1] */
+        private void binary(int opcode, int adr) {
+            needs(2, adr);
+            pop(T1);
+            pop(T0);
+            c.iload(T0);
+            c.iload(T1);
+            c.op(opcode);
+            push();
+        }
+    }
+
+    private static int condition(int op) {
+        switch(op) {
+            case JEQ: return IF_ICMPEQ;
+            case JNE: return IF_ICMPNE;
+            case JLT: return IF_ICMPLT;
+            case JLE: return IF_ICMPLE;
+            case JGT: return IF_ICMPGT;
+            default: return IF_ICMPGE;
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(Jit.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
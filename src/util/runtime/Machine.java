@@ -0,0 +1,115 @@
+package util.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.IntBuffer;
+
+/* memory and registers of a running program, shared by the interpreter and compiled methods.
+ * public for the generated classes, which live in a class loader of their own */
+public class Machine {
+    /* returned when main returns */
+    public static final int END = -2;
+    /* compiled code pushes COMPILED - return address, the interpreter returns to its caller when it pops one and
+     * the collector takes the address back out to walk the frames */
+    public static final int COMPILED = -3;
+
+    public final IntBuffer data;
+    public final IntBuffer heap;
+    public final int[] stack;
+    public final int[] local;
+    public int esp = 0;
+    public int sp = 0;
+    public int fp = 0;
+    public int free = 1;
+
+    private final Interpreter interpreter;
+    /* null when nothing is collected */
+    private final Collector collector;
+    private final InputStream in;
+    private final PrintStream out;
+
+    Machine(Interpreter interpreter, Memory memory, InputStream in, PrintStream out) {
+        this.interpreter = interpreter;
+        collector = interpreter.collector;
+        this.in = in;
+        this.out = out;
+        data = memory.data;
+        heap = memory.heap;
+        stack = new int[Interpreter.EXPRESSION_STACK_SIZE];
+        local = new int[Interpreter.METHOD_STACK_SIZE];
+    }
+
+    public VMException error(String message, int adr) {
+        return new VMException(message, adr);
+    }
+
+    /* new_ and newarray, the size in bytes */
+    public int allocate(int size, int errorAdr) throws VMException {
+        int adr = free;
+        free += (size + 3) >> 2;
+        if(free > heap.capacity()) throw new VMException("heap overflow", errorAdr);
+        return adr;
+    }
+
+    /* new_ at pc and newarray at pc from compiled code when there is a collector, esp is stored and the locals
+     * are in local, the length of an array still on the stack */
+    public int allocateObject(int size, int pc) throws VMException {
+        return collector.allocate(this, pc, size, interpreter.next[pc] - 1);
+    }
+
+    public int allocateArray(int pc) throws VMException {
+        return collector.allocateArray(this, pc, interpreter.next[pc] - 1);
+    }
+
+    /* call from compiled code, the caller checked for room for the return address and stored esp.
+     * negative once the method returned, END if main did */
+    public int call(int target, int returnAdr) throws VMException, IOException {
+        local[sp++] = COMPILED - returnAdr;
+        return interpreter.invoke(this, target);
+    }
+
+    /* invokevirtual at adr from compiled code, tvfp already popped */
+    public int invokevirtual(int adr, int tvfp) throws VMException, IOException {
+        int target = interpreter.lookup(adr, data, tvfp);
+        if(sp == local.length) throw interpreter.after("method stack overflow", adr);
+        return call(target, interpreter.next[adr]);
+    }
+
+    /* what a frame returns to, either as pushed by call or as pushed by compiled code */
+    static int returnAddress(int word) {
+        return word <= COMPILED? COMPILED - word : word;
+    }
+
+    /* Run.readInt, except that the end of input is an error instead of waiting forever */
+    public int readInt(int adr) throws IOException, VMException {
+        int val = 0;
+        int prev = ' ';
+        int b = in.read();
+        while(b < '0' || b > '9') {
+            if(b == -1) throw new VMException("unexpected end of input", adr);
+            prev = b;
+            b = in.read();
+        }
+        while(b >= '0' && b <= '9') {
+            val = 10 * val + b - '0';
+            b = in.read();
+        }
+        return prev == '-'? -val : val;
+    }
+
+    public int bread() throws IOException {
+        return in.read();
+    }
+
+    public void print(int val, int width) {
+        String s = Integer.toString(val);
+        for(int i = s.length(); i < width; i++) out.print(' ');
+        out.print(s);
+    }
+
+    public void bprint(int val, int width) {
+        for(int i = 1; i < width; i++) out.print(' ');
+        out.print((char)val);
+    }
+}
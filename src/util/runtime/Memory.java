@@ -0,0 +1,126 @@
+package util.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/* the static data and the heap of a running program as int buffers, every access an absolute, bounds checked
+ * get or put. by default both are on the Java heap with Run's heap size, -heap=<MiB> moves them into one direct
+ * buffer and -heapfile=<file> maps them from a file, either way the JVM collector never sees the words.
+ * a snapshot, and a mapped file once the program ended, is big endian: the header (MAGIC, data size, heap size,
+ * free), the data words and the heap words up to free */
+public class Memory {
+    static final int MAGIC = 0x4D4A4850;
+    static final int HEADER = 4;
+    /* a ByteBuffer holds at most 2 GiB */
+    static final int MAX_MIB = 2047;
+
+    final IntBuffer data;
+    final IntBuffer heap;
+    /* null unless mapped */
+    private final MappedByteBuffer mapped;
+    private final File snapshot;
+
+    private Memory(ByteBuffer bytes, int dataSize, MappedByteBuffer mapped, File snapshot) {
+        int heapStart = (HEADER + dataSize) * 4;
+        data = slice(bytes, HEADER * 4, dataSize * 4).asIntBuffer();
+        heap = slice(bytes, heapStart, bytes.capacity() - heapStart).asIntBuffer();
+        this.mapped = mapped;
+        this.snapshot = snapshot;
+    }
+
+    private Memory(int dataSize, File snapshot) {
+        data = IntBuffer.wrap(new int[dataSize]);
+        heap = IntBuffer.wrap(new int[Interpreter.HEAP_SIZE]);
+        mapped = null;
+        this.snapshot = snapshot;
+    }
+
+    public static boolean isOption(String option) {
+        return option.startsWith("-heap=") || option.startsWith("-heapfile=") || option.startsWith("-snapshot=");
+    }
+
+    /* -heap=<MiB>, -heapfile=<file> (of -heap size, Run's heap size without it) and -snapshot=<file>,
+     * written when the program ends */
+    public static Memory fromOptions(String[] args, int dataSize) throws IOException {
+        int mib = 0;
+        File file = null, snapshot = null;
+        for(String arg : args) {
+            if(arg.startsWith("-heap=")) mib = Integer.parseInt(arg.substring("-heap=".length()));
+            else if(arg.startsWith("-heapfile=")) file = new File(arg.substring("-heapfile=".length()));
+            else if(arg.startsWith("-snapshot=")) snapshot = new File(arg.substring("-snapshot=".length()));
+        }
+        if(mib < 0 || mib > MAX_MIB) throw new IllegalArgumentException("-heap is 1 to " + MAX_MIB + " MiB");
+        long bytes = mib > 0? (long)mib << 20 : (long)(HEADER + dataSize + Interpreter.HEAP_SIZE) * 4;
+        if(bytes < (long)(HEADER + dataSize + 1) * 4) throw new IllegalArgumentException("-heap does not hold the static data");
+        if(file != null) return mapped(file, dataSize, (int)bytes, snapshot);
+        if(mib > 0) return new Memory(ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder()), dataSize, null, snapshot);
+        return new Memory(dataSize, snapshot);
+    }
+
+    /* a fresh file of the given size, sparse on most file systems, so untouched words cost nothing */
+    private static Memory mapped(File file, int dataSize, int bytes, File snapshot) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            /* the mapping outlives the channel */
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            mapped.order(ByteOrder.BIG_ENDIAN).asIntBuffer().put(0, MAGIC).put(1, dataSize).put(2, (bytes >> 2) - HEADER - dataSize);
+            return new Memory(mapped, dataSize, mapped, snapshot);
+        }
+    }
+
+    /* once the program ended, normally or not. free is past the heap after a heap overflow */
+    void close(int free) throws IOException {
+        free = Math.min(free, heap.capacity());
+        if(mapped != null) {
+            mapped.asIntBuffer().put(3, free);
+            mapped.force();
+        }
+        if(snapshot != null) snapshot(snapshot, free);
+    }
+
+    /* header, data and heap up to free, through one buffer of at most 64 KiB */
+    void snapshot(File file, int free) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+            chunk.asIntBuffer().put(new int[] { MAGIC, data.capacity(), heap.capacity(), free });
+            chunk.position(HEADER * 4);
+            write(channel, chunk, data, data.capacity());
+            write(channel, chunk, heap, free);
+            chunk.flip();
+            while(chunk.hasRemaining()) channel.write(chunk);
+        }
+    }
+
+    /* length bytes from offset, in the byte order of bytes. position and limit return Buffer on Java 8 */
+    private static ByteBuffer slice(ByteBuffer bytes, int offset, int length) {
+        ByteBuffer view = bytes.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(bytes.order());
+    }
+
+    /* the first count words of words, chunk keeps what does not fill it */
+    private static void write(FileChannel channel, ByteBuffer chunk, IntBuffer words, int count) throws IOException {
+        for(int i = 0; i < count; ) {
+            if(!chunk.hasRemaining()) {
+                chunk.flip();
+                while(chunk.hasRemaining()) channel.write(chunk);
+                chunk.clear();
+            }
+            int n = Math.min(count - i, chunk.remaining() / 4);
+            IntBuffer range = words.duplicate();
+            range.limit(i + n);
+            range.position(i);
+            chunk.asIntBuffer().put(range);
+            chunk.position(chunk.position() + 4 * n);
+            i += n;
+        }
+    }
+}
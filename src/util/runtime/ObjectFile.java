@@ -0,0 +1,62 @@
+package util.runtime;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/* what Code.write puts out: "MJ", code size, data size, start pc and the code itself, then the section of
+ * util.codegen.GcMaps if it was compiled with -gc */
+public class ObjectFile {
+    private final byte[] code;
+    private final int dataSize;
+    private final int startPc;
+    /* what follows "GC", null without maps */
+    private final byte[] gcMaps;
+
+    private ObjectFile(byte[] code, int dataSize, int startPc, byte[] gcMaps) {
+        this.code = code;
+        this.dataSize = dataSize;
+        this.startPc = startPc;
+        this.gcMaps = gcMaps;
+    }
+
+    /* same checks as Run.load */
+    static ObjectFile load(File file) throws IOException, FormatException {
+        try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if(in.read() != 'M' || in.read() != 'J') throw new FormatException("wrong marker");
+            int codeSize = in.readInt();
+            if(codeSize <= 0) throw new FormatException("codeSize <= 0");
+            int dataSize = in.readInt();
+            if(dataSize < 0) throw new FormatException("dataSize < 0");
+            int startPc = in.readInt();
+            if(startPc < 0 || startPc >= codeSize) throw new FormatException("startPC not in code area");
+            byte[] code = new byte[codeSize];
+            in.readFully(code);
+            /* Run ignores whatever comes after the code */
+            byte[] gcMaps = null;
+            if(in.read() == 'G' && in.read() == 'C') {
+                /* the maps run to the end of the file, after "MJ", three ints, the code and "GC" */
+                gcMaps = new byte[(int) (file.length() - 16 - codeSize)];
+                in.readFully(gcMaps);
+            }
+            return new ObjectFile(code, dataSize, startPc, gcMaps);
+        }
+    }
+
+    public byte[] getCode() {
+        return code;
+    }
+
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    public int getStartPc() {
+        return startPc;
+    }
+
+    public byte[] getGcMaps() {
+        return gcMaps;
+    }
+}
@@ -0,0 +1,17 @@
+package util.runtime;
+
+/* a runtime error of the MJ program, reported like Run does with the address it happened at */
+public class VMException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int adr;
+
+    VMException(String message, int adr) {
+        super(message);
+        this.adr = adr;
+    }
+
+    int getAdr() {
+        return adr;
+    }
+}
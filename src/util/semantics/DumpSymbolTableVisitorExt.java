@@ -0,0 +1,29 @@
+package util.semantics;
+
+import rs.etf.pp1.symboltable.concepts.Struct;
+import rs.etf.pp1.symboltable.visitors.DumpSymbolTableVisitor;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/* the library dump prints the members of a class type wherever it appears, a field of the class's own type (or of
+ * a class that leads back to it) recursed until the stack ran out. a class already being printed is just "Class" */
+public class DumpSymbolTableVisitorExt extends DumpSymbolTableVisitor {
+    private final Set<Struct> printing = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    @Override
+    public void visitStructNode(Struct structToVisit) {
+        if(structToVisit.getKind() != Struct.Class) {
+            super.visitStructNode(structToVisit);
+        } else if(printing.add(structToVisit)) {
+            try {
+                super.visitStructNode(structToVisit);
+            } finally {
+                printing.remove(structToVisit);
+            }
+        } else {
+            output.append("Class");
+        }
+    }
+}
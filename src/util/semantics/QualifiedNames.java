@@ -0,0 +1,28 @@
+package util.semantics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* "namespace::name" strings are built once, resolving an identifier after that is a map lookup with no allocation */
+public class QualifiedNames {
+    private static final Map<String, Map<String, String>> namespaces = new HashMap<>();
+
+    public static void reset() {
+        namespaces.clear();
+    }
+
+    public static String inNamespace(String namespace, String name) {
+        Map<String, String> names = namespaces.get(namespace);
+        if(names == null) {
+            names = new HashMap<>();
+            namespaces.put(namespace, names);
+        }
+
+        String qualified = names.get(name);
+        if(qualified == null) {
+            qualified = namespace + "::" + name;
+            names.put(name, qualified);
+        }
+        return qualified;
+    }
+}
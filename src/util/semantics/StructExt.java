@@ -5,13 +5,28 @@ import rs.etf.pp1.symboltable.concepts.Obj;
 import rs.etf.pp1.symboltable.concepts.Struct;
 import rs.etf.pp1.symboltable.structure.SymbolDataStructure;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class StructExt extends Struct {
     private Set<Obj> inheritedMethods = new HashSet<>();
+    /* method name -> vtable slot, iteration order is slot order */
+    private final Map<String, Integer> virtualTable = new LinkedHashMap<>();
+    /* slot -> method of this class, inherited copies included */
+    private final ArrayList<Obj> slotMethods = new ArrayList<>();
     private String className;
+    /* static member name -> "Class.name" as inserted into the symbol table */
+    private final Map<String, String> staticNames = new HashMap<>();
+    /* ancestors[i] is the ancestor at depth i, the class itself is the last one */
+    private StructExt[] ancestors;
+    /* static members found up the chain by simple name, misses are kept as noObj */
+    private final Map<String, Obj> staticMembers = new HashMap<>();
     private int tvfp;
 
     public int getTvfp() {
@@ -30,6 +45,15 @@ public class StructExt extends Struct {
         this.className = className;
     }
 
+    public String getStaticName(String name) {
+        String qualified = staticNames.get(name);
+        if(qualified == null) {
+            qualified = className + "." + name;
+            staticNames.put(name, qualified);
+        }
+        return qualified;
+    }
+
     public Set<Obj> getInheritedMethods() {
         return inheritedMethods;
     }
@@ -50,13 +74,47 @@ public class StructExt extends Struct {
         super(kind, members);
     }
 
+    @Override
+    public void setElementType(Struct elemType) {
+        super.setElementType(elemType);
+        ancestors = null;
+        staticMembers.clear();
+    }
+
+    public StructExt[] getAncestors() {
+        if(ancestors == null) {
+            StructExt[] parents = getElemType() instanceof StructExt? ((StructExt) getElemType()).getAncestors() : new StructExt[0];
+            ancestors = Arrays.copyOf(parents, parents.length + 1);
+            ancestors[parents.length] = this;
+        }
+        return ancestors;
+    }
+
+    /* p sits at its own depth in our chain or nowhere */
     public boolean isSuperClass(Struct p) {
-        /* probably smth like this */
-        for(Struct t = this; t != null; t = t.getElemType()) {
-            if(t == p) return true;
+        if(!(p instanceof StructExt)) return false;
+        int depth = ((StructExt) p).getAncestors().length - 1;
+        StructExt[] chain = getAncestors();
+        return depth < chain.length && chain[depth] == p;
+    }
+
+    /* nearest static with this name in the class or its ancestors, noObj if there is none */
+    public Obj findStatic(String name) {
+        Obj found = staticMembers.get(name);
+        if(found == null) {
+            found = TabExt.noObj;
+            StructExt[] chain = getAncestors();
+            for(int i = chain.length - 1; i >= 0 && found == TabExt.noObj; i--) {
+                found = TabExt.find(chain[i].getStaticName(name));
+            }
+            staticMembers.put(name, found);
         }
+        return found;
+    }
 
-        return  false;
+    /* only the class being declared can get new statics, its subclasses do not exist yet */
+    public void staticDeclared() {
+        staticMembers.clear();
     }
 
     /* override entirely, super assignableTo uses Tab.noType etc. */
@@ -79,15 +137,45 @@ public class StructExt extends Struct {
         return this.equals(other) || this == TabExt.nullType && other.isRefType() || other == TabExt.nullType && this.isRefType();
     }
 
-    public void copyAddresses() {
-        for(Obj inheritedMethod : inheritedMethods) {
-            for(Obj parentMethod : getElemType().getMembers()) {
-                if(inheritedMethod.getName().equals(parentMethod.getName())) {
-                    inheritedMethod.setAdr(parentMethod.getAdr());
-                    System.out.println("found a method to copy adr " + inheritedMethod.getName() + " " + inheritedMethod.getAdr());
-                    break;
-                }
+    public Map<String, Integer> getVirtualTable() {
+        return virtualTable;
+    }
+
+    public int getSlot(String methodName) {
+        Integer slot = virtualTable.get(methodName);
+        return slot == null? -1 : slot;
+    }
+
+    /* parent slots come first and keep their index, overrides reuse the parent slot, new methods are appended */
+    public void buildVirtualTable() {
+        virtualTable.clear();
+        if(getElemType() instanceof StructExt) {
+            virtualTable.putAll(((StructExt) getElemType()).getVirtualTable());
+        }
+
+        for(Obj m : getMembers()) {
+            if(m.getKind() == Obj.Meth && !virtualTable.containsKey(m.getName())) {
+                virtualTable.put(m.getName(), virtualTable.size());
             }
         }
+
+        slotMethods.clear();
+        for(String name : virtualTable.keySet()) {
+            slotMethods.add(findMember(name));
+        }
+    }
+
+    /* members are kept in a hash table by name, null if there is no such member */
+    public Obj findMember(String name) {
+        return getMembersTable().searchKey(name);
+    }
+
+    /* the same object, not just an equal one, members of other classes can look the same */
+    public boolean isMember(Obj o) {
+        return o != null && findMember(o.getName()) == o;
+    }
+
+    public Obj getSlotMethod(int slot) {
+        return slot < slotMethods.size()? slotMethods.get(slot) : null;
     }
 }
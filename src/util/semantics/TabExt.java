@@ -5,16 +5,11 @@ import rs.etf.pp1.symboltable.concepts.Obj;
 import rs.etf.pp1.symboltable.concepts.Scope;
 import rs.etf.pp1.symboltable.concepts.Struct;
 
+import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
 
 /* https://rti.etf.bg.ac.rs/rti/ir4ps/predavanja/Projektni%20uzorci/02%20Unikat.pdf */
 public class TabExt extends Tab {
-    private static final Queue<Obj> globalVars = new LinkedList<>();
-
-    public static Obj arrSrc;
-    public static Obj arrDst;
     public static final StructExt noType = new StructExt(Struct.None);
     public static final StructExt intType = new StructExt(Struct.Int);
     public static final StructExt charType = new StructExt(Struct.Char);
@@ -23,16 +18,9 @@ public class TabExt extends Tab {
     public  static final StructExt boolType = new StructExt(Struct.Bool);
     public static final Obj noObj = new Obj(Obj.Var, "noObj", noType);
 
-    public static Obj getNextGlobal() {
-        return globalVars.remove();
-    }
-
-    public static void addGlobal(Obj globalVar) {
-        globalVars.add(globalVar);
-    }
-
     /* same for now */
     public static void init() {
+        resetLevel();
         currentScope = new Scope(null);
         closeScope();
 
@@ -73,6 +61,18 @@ public class TabExt extends Tab {
         }
     }
 
+    /* Tab keeps the scope depth in a private static and never resets it, a second compilation
+     * in the same class loader (or one after errors left scopes open) would start at the wrong level */
+    private static void resetLevel() {
+        try {
+            Field level = Tab.class.getDeclaredField("currentLevel");
+            level.setAccessible(true);
+            level.setInt(null, 0);
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot reset the symbol table", e);
+        }
+    }
+
     public static Obj find(String name) {
         Obj ret = Tab.find(name);
         return  ret == Tab.noObj? TabExt.noObj : ret;